@@ -0,0 +1,303 @@
+package edu.cwru.sepia.agent;
+
+import java.util.List;
+import java.util.Random;
+
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+/**
+ * Microbenchmarks for the RLAgent decision and learning hot paths, run
+ * against synthetic battles so no live SEPIA game is needed. Every benchmark
+ * is repeated for each battle size so we can see how cost grows with unit
+ * count. Timing is done by Microbench, not JMH, so read its notes before
+ * comparing numbers across machines or builds.
+ *
+ * Run with lib/SEPIA.jar, the compiled src and the compiled bench folder on
+ * the classpath:
+ *
+ * java edu.cwru.sepia.agent.AgentBenchmark [sizes] [warmupMillis]
+ * [measureMillis]
+ *
+ * where sizes is a comma separated list of footmen per side, for example
+ * 5,10,100,500.
+ *
+ * java edu.cwru.sepia.agent.AgentBenchmark verify [sizes] [steps]
+ *
+ * checks QMatrix instead of timing anything. For each size it applies steps
+ * rounds of random damage, deaths, moves and weight changes to an agent's
+ * battlefield. After each round it compares every cached entry, best
+ * Q-value and best defender with a full calcQValue scan. Some rounds only
+ * prepare and refresh some rows, as the decision budget does. It runs once
+ * with the standard features and once with the same features through the
+ * generic extractor path, and exits with status 1 on any mismatch.
+ */
+public class AgentBenchmark {
+
+	private static final String DEFAULT_SIZES = "5,10,50,100,250,500";
+	private static final long DECISION_BUDGET_NANOS = 100000;
+	private static final int DEFAULT_VERIFY_STEPS = 2000;
+
+	public static void main(String[] args) {
+		if (args.length >= 1 && args[0].equals("verify")) {
+			String sizes = args.length >= 2 ? args[1] : DEFAULT_SIZES;
+			int steps = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_VERIFY_STEPS;
+			long mismatches = 0;
+			for (String size : sizes.split(",")) {
+				mismatches += verify(Integer.parseInt(size.trim()), steps, false);
+				mismatches += verify(Integer.parseInt(size.trim()), steps, true);
+			}
+			if (mismatches > 0) {
+				System.exit(1);
+			}
+			return;
+		}
+		String sizes = args.length >= 1 ? args[0] : DEFAULT_SIZES;
+		long warmupMillis = args.length >= 2 ? Long.parseLong(args[1]) : 500;
+		long measureMillis = args.length >= 3 ? Long.parseLong(args[2]) : 1000;
+
+		Microbench bench = new Microbench(warmupMillis, measureMillis);
+		Microbench.printHeader();
+		for (String size : sizes.split(",")) {
+			run(bench, Integer.parseInt(size.trim()));
+		}
+	}
+
+	private static void run(Microbench bench, final int footmenPerSide) {
+		BattleFixture fixture = new BattleFixture(footmenPerSide);
+		final State.StateView state = fixture.stateView();
+		final History.HistoryView history = fixture.historyView();
+		final List<Integer> mine = fixture.myFootmen;
+		final List<Integer> enemies = fixture.enemyFootmen;
+
+		final RLAgent agent = new RLAgent(0, new String[] { "1", "false" });
+		agent.setHeadless(true);
+		agent.initialStep(state, history);
+
+		bench.run("middleStep", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(agent.middleStep(state, history));
+			}
+		});
+
+		final RLAgent budgeted = new RLAgent(0, new String[] { "1", "false" });
+		budgeted.setHeadless(true);
+		budgeted.setDecisionBudget(DECISION_BUDGET_NANOS);
+		budgeted.initialStep(state, history);
+		bench.run("middleStep (100us budget)", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(budgeted.middleStep(state, history));
+			}
+		});
+
+		bench.run("optimalEnemyToAttack", footmenPerSide, new Microbench.Op() {
+			int next;
+
+			public void run(Microbench.Blackhole sink) {
+				int attacker = mine.get(next++ % mine.size());
+				sink.consume(agent.optimalEnemyToAttack(state, history, attacker));
+			}
+		});
+
+		final UnitSet attackers = new UnitSet();
+		final UnitSet defenders = new UnitSet();
+		final UnitTable units = new UnitTable();
+		final OccupancyGrid grid = new OccupancyGrid(state.getXExtent(), state.getYExtent(),
+				RLAgent.ENEMY_PLAYERNUM + 1);
+		for (Unit.UnitView unit : state.getAllUnits()) {
+			int player = unit.getTemplateView().getPlayer();
+			(player == 0 ? attackers : defenders).add(unit.getID());
+			units.update(unit.getID(), unit.getHP(), unit.getXPosition(), unit.getYPosition());
+			grid.add(player, unit.getXPosition(), unit.getYPosition());
+		}
+		final QMatrix matrix = new QMatrix();
+		bench.run("QMatrix.evaluate (all rows)", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				matrix.invalidate();
+				matrix.evaluate(attackers, defenders, units, grid, RLAgent.ENEMY_PLAYERNUM, agent.weights);
+				sink.consume(matrix.bestDefender(0));
+			}
+		});
+		bench.run("QMatrix.evaluate (cached)", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				matrix.evaluate(attackers, defenders, units, grid, RLAgent.ENEMY_PLAYERNUM, agent.weights);
+				sink.consume(matrix.bestDefender(0));
+			}
+		});
+		final int movingEnemy = enemies.get(0);
+		bench.run("QMatrix.evaluate (one unit hit)", footmenPerSide, new Microbench.Op() {
+			int hp;
+
+			public void run(Microbench.Blackhole sink) {
+				units.update(movingEnemy, 1 + (hp++ & 15), units.x(movingEnemy), units.y(movingEnemy));
+				matrix.evaluate(attackers, defenders, units, grid, RLAgent.ENEMY_PLAYERNUM, agent.weights);
+				sink.consume(matrix.bestDefender(0));
+			}
+		});
+
+		bench.run("calcQValue", footmenPerSide, new Microbench.Op() {
+			int next;
+
+			public void run(Microbench.Blackhole sink) {
+				int i = next++;
+				sink.consume(agent.calcQValue(state, history, mine.get(i % mine.size()),
+						enemies.get(i % enemies.size())));
+			}
+		});
+
+		bench.run("calculateFeatureVector", footmenPerSide, new Microbench.Op() {
+			int next;
+
+			public void run(Microbench.Blackhole sink) {
+				int i = next++;
+				sink.consume(agent.calculateFeatureVector(state, history, mine.get(i % mine.size()),
+						enemies.get(i % enemies.size())));
+			}
+		});
+
+		bench.run("calculateReward", footmenPerSide, new Microbench.Op() {
+			int next;
+
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(agent.calculateReward(state, history, mine.get(next++ % mine.size())));
+			}
+		});
+
+		final double[] features = agent.calculateFeatureVector(state, history, mine.get(0), enemies.get(0));
+		bench.run("updateWeights", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(agent.updateWeights(-0.1, 0.5, 0.25, features));
+			}
+		});
+
+		final Position a = new Position(3, 4);
+		final Position b = new Position(4, 6);
+		bench.run("Position.euclideanDistance", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(a.euclideanDistance(b));
+			}
+		});
+		bench.run("Position.chebyshevDistance", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(a.chebyshevDistance(b));
+			}
+		});
+		bench.run("Position.isAdjacent", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(a.isAdjacent(b));
+			}
+		});
+		bench.run("Position.getAdjacentPositions", footmenPerSide, new Microbench.Op() {
+			public void run(Microbench.Blackhole sink) {
+				sink.consume(a.getAdjacentPositions());
+			}
+		});
+	}
+
+	/**
+	 * Runs the QMatrix check described above for one battle size.
+	 *
+	 * @param generic
+	 *            true to use a copy of the standard features, which takes
+	 *            the extractor path in both QMatrix and RLAgent
+	 * @return Number of mismatches found
+	 */
+	private static long verify(int footmenPerSide, int steps, boolean generic) {
+		BattleFixture fixture = new BattleFixture(footmenPerSide);
+		RLAgent agent = new RLAgent(0, new String[] { "1", "false" });
+		agent.setHeadless(true);
+		QMatrix matrix = new QMatrix();
+		if (generic) {
+			FeatureExtractor features = FeatureExtractor.standard(RLAgent.ENEMY_PLAYERNUM).plus();
+			agent.setFeatureExtractor(features);
+			matrix.setFeatureExtractor(features);
+		}
+		agent.initialStep(fixture.stateView(), fixture.historyView());
+
+		Battlefield battlefield = agent.getBattlefield();
+		UnitSet mine = battlefield.myFootmen();
+		UnitSet enemies = battlefield.enemyFootmen();
+		UnitTable units = battlefield.units();
+		OccupancyGrid grid = battlefield.grid();
+		Random random = new Random(footmenPerSide);
+		boolean[] refreshed = new boolean[footmenPerSide];
+
+		long checked = 0;
+		long mismatches = 0;
+		for (int step = 0; step < steps; step++) {
+			int changes = random.nextInt(4);
+			for (int i = 0; i < changes; i++) {
+				int kind = random.nextInt(3);
+				boolean enemy = random.nextBoolean();
+				UnitSet side = enemy ? enemies : mine;
+				int player = enemy ? RLAgent.ENEMY_PLAYERNUM : 0;
+				int unit = side.get(random.nextInt(side.size()));
+				if (kind == 0) {
+					int hp = units.hp(unit) - 1 - random.nextInt(BattleFixture.HIT_DAMAGE);
+					if (hp <= 0 && side.size() > 1) {
+						side.remove(unit);
+						grid.remove(player, units.x(unit), units.y(unit));
+					}
+					units.update(unit, Math.max(hp, 0), units.x(unit), units.y(unit));
+				} else if (kind == 1) {
+					int x = units.x(unit) + random.nextInt(3) - 1;
+					int y = units.y(unit) + random.nextInt(3) - 1;
+					if (x >= 0 && y >= 0 && x < grid.getXExtent() && y < grid.getYExtent()
+							&& grid.count(0, x, y) + grid.count(RLAgent.ENEMY_PLAYERNUM, x, y) == 0) {
+						grid.move(player, units.x(unit), units.y(unit), x, y);
+						units.update(unit, units.hp(unit), x, y);
+					}
+				} else {
+					// weights are changed in place, as learning and HOGWILD do
+					agent.weights[random.nextInt(agent.weights.length)] += random.nextGaussian() * 0.1;
+				}
+			}
+
+			boolean partial = random.nextInt(3) == 0;
+			if (partial) {
+				matrix.prepare(mine, enemies, units, grid, RLAgent.ENEMY_PLAYERNUM, agent.weights);
+				for (int row = 0; row < matrix.attackerCount(); row++) {
+					refreshed[row] = random.nextBoolean();
+					if (refreshed[row]) {
+						matrix.refresh(row);
+					}
+				}
+			} else {
+				matrix.evaluate(mine, enemies, units, grid, RLAgent.ENEMY_PLAYERNUM, agent.weights);
+			}
+
+			for (int row = 0; row < matrix.attackerCount(); row++) {
+				if (partial && !refreshed[row]) {
+					continue;
+				}
+				int attacker = matrix.attackerId(row);
+				double best = Double.NEGATIVE_INFINITY;
+				for (int column = 0; column < matrix.defenderCount(); column++) {
+					double expected = agent.calcQValue(null, null, attacker, matrix.defenderId(column));
+					best = Math.max(best, expected);
+					checked++;
+					if (!close(matrix.q(row, column), expected)) {
+						mismatches++;
+					}
+				}
+				double chosen = agent.calcQValue(null, null, attacker, matrix.bestDefender(row));
+				checked++;
+				if (!close(matrix.bestQ(row), best) || !close(chosen, best)) {
+					mismatches++;
+				}
+			}
+		}
+		System.out.println(String.format("verify %4d %-8s %8d values checked, %d mismatches", footmenPerSide,
+				generic ? "generic" : "standard", checked, mismatches));
+		return mismatches;
+	}
+
+	/**
+	 * QMatrix adds the terms in a different order than the dot product, so
+	 * the last bits can differ.
+	 */
+	private static boolean close(double actual, double expected) {
+		return Math.abs(actual - expected) <= 1e-9 * Math.max(1, Math.abs(expected));
+	}
+}
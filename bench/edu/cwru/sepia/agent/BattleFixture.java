@@ -0,0 +1,102 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+
+/**
+ * Synthetic SEPIA battle used by the benchmarks. Builds a State with two
+ * blocks of footmen facing each other along a shared front line, plus one
+ * turn of history in which every unit on the front line traded a hit with
+ * the unit across from it. That is enough for RLAgent to see an event and
+ * take its full decision and learning path on every middleStep.
+ *
+ * The map grows with the unit count so the formation always fits.
+ */
+public class BattleFixture {
+
+	public static final int FOOTMAN_HP = 60;
+	public static final int HIT_DAMAGE = 6;
+
+	public final int footmenPerSide;
+	public final State state;
+	public final History history;
+	public final List<Integer> myFootmen = new ArrayList<Integer>();
+	public final List<Integer> enemyFootmen = new ArrayList<Integer>();
+
+	/**
+	 * @param footmenPerSide
+	 *            Number of footmen each player starts with
+	 */
+	public BattleFixture(int footmenPerSide) {
+		this.footmenPerSide = footmenPerSide;
+
+		int rows = Math.max(19, (int) Math.ceil(Math.sqrt(footmenPerSide * 2.0)));
+		int columns = (footmenPerSide + rows - 1) / rows;
+
+		state = new State();
+		state.setSize(Math.max(25, 2 * columns + 2), rows);
+		state.addPlayer(0);
+		state.addPlayer(RLAgent.ENEMY_PLAYERNUM);
+
+		UnitTemplate mine = footmanTemplate(state.nextTemplateID(), 0);
+		UnitTemplate theirs = footmanTemplate(state.nextTemplateID(), RLAgent.ENEMY_PLAYERNUM);
+		state.addTemplate(mine);
+		state.addTemplate(theirs);
+
+		// my footmen fill columns [0, columns), enemies fill [columns,
+		// 2 * columns) so the last column of each side touches the other
+		for (int i = 0; i < footmenPerSide; i++) {
+			myFootmen.add(place(mine, columns - 1 - i / rows, i % rows));
+			enemyFootmen.add(place(theirs, columns + i / rows, i % rows));
+		}
+
+		history = new History();
+		history.addPlayer(0);
+		history.addPlayer(RLAgent.ENEMY_PLAYERNUM);
+		for (int i = 0; i < Math.min(rows, footmenPerSide); i++) {
+			Unit me = state.getUnit(myFootmen.get(i));
+			Unit enemy = state.getUnit(enemyFootmen.get(i));
+			history.recordDamage(me, enemy, HIT_DAMAGE, state);
+			history.recordDamage(enemy, me, HIT_DAMAGE, state);
+			history.recordCommandFeedback(0, state.getTurnNumber(), new ActionResult(
+					Action.createCompoundAttack(me.ID, enemy.ID), ActionFeedback.COMPLETED));
+		}
+		state.incrementTurn();
+	}
+
+	public State.StateView stateView() {
+		return state.getView(0);
+	}
+
+	public History.HistoryView historyView() {
+		return history.getView(0);
+	}
+
+	private int place(UnitTemplate template, int x, int y) {
+		Unit unit = new Unit(template, state.nextTargetID());
+		unit.setHP(FOOTMAN_HP);
+		state.addUnit(unit, x, y);
+		return unit.ID;
+	}
+
+	private static UnitTemplate footmanTemplate(int id, int player) {
+		UnitTemplate template = new UnitTemplate(id);
+		template.setName("Footman");
+		template.setPlayer(player);
+		template.setBaseHealth(FOOTMAN_HP);
+		template.setBasicAttack(HIT_DAMAGE);
+		template.setRange(1);
+		template.setSightRange(4);
+		template.setCanMove(true);
+		template.setCharacter('f');
+		return template;
+	}
+}
@@ -0,0 +1,153 @@
+package edu.cwru.sepia.agent;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal timing harness for the agent benchmarks. Each benchmark is warmed
+ * up for a fixed wall-clock period so the JIT has compiled the hot path, then
+ * run in a measured period. Reports average nanoseconds per operation and the
+ * bytes allocated per operation by the benchmark thread, which is the number
+ * the GC profiler would give us.
+ *
+ * Operations hand their results to a Blackhole so the JIT cannot drop the
+ * work as dead code.
+ *
+ * These are not JMH numbers. Every benchmark runs in the same JVM, one after
+ * the other, so profile pollution from earlier benchmarks can change how
+ * later ones are compiled, and there are no forks or repeated iterations to
+ * give an error bound. Use them to compare runs of the same build on the
+ * same machine, not as absolute costs.
+ */
+public class Microbench {
+
+	/**
+	 * One benchmarked operation.
+	 */
+	public interface Op {
+		void run(Blackhole sink);
+	}
+
+	/**
+	 * Consumes results the way JMH's Blackhole does: each value is compared
+	 * with volatile fields it can never equal both of, so the JIT has to
+	 * compute it, but nothing is written on the hot path.
+	 */
+	public static final class Blackhole {
+		public volatile long l1 = 1;
+		public volatile long l2 = 2;
+		public volatile double d1 = 1;
+		public volatile double d2 = 2;
+		public volatile Object o1;
+		private int random;
+		private int mask = 1;
+
+		public void consume(long value) {
+			if (value == l1 & value == l2) {
+				throw new IllegalStateException("Blackhole fields were changed");
+			}
+		}
+
+		public void consume(boolean value) {
+			consume(value ? 1L : 0L);
+		}
+
+		public void consume(double value) {
+			if (value == d1 & value == d2) {
+				throw new IllegalStateException("Blackhole fields were changed");
+			}
+		}
+
+		/**
+		 * Publishes the object now and then, less often over time, so it
+		 * escapes without a store per call.
+		 */
+		public void consume(Object value) {
+			random = random * 1664525 + 1013904223;
+			if ((random & mask) == 0) {
+				o1 = value;
+				mask = (mask << 1) + 1;
+			}
+		}
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+	private final long warmupMillis;
+	private final long measureMillis;
+	private final Blackhole sink = new Blackhole();
+
+	/**
+	 * @param warmupMillis
+	 *            How long to run each operation before measuring
+	 * @param measureMillis
+	 *            How long to measure each operation for
+	 */
+	public Microbench(long warmupMillis, long measureMillis) {
+		this.warmupMillis = warmupMillis;
+		this.measureMillis = measureMillis;
+	}
+
+	public static void printHeader() {
+		System.out.println(String.format("%-30s %8s %14s %12s %14s", "Benchmark", "Units", "ns/op", "B/op",
+				"ops"));
+		System.out.println(String.format("%-30s %8s %14s %12s %14s", "---------", "-----", "-----", "----", "---"));
+	}
+
+	/**
+	 * Runs and reports a single benchmark.
+	 *
+	 * @param name
+	 *            Name to print
+	 * @param units
+	 *            Footmen per side in the fixture, printed for reference
+	 * @param op
+	 *            Operation to time
+	 */
+	public void run(String name, int units, Op op) {
+		loop(op, warmupMillis);
+
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = allocatedBytes(threadId);
+		long start = System.nanoTime();
+		long ops = loop(op, measureMillis);
+		long elapsed = System.nanoTime() - start;
+		long bytes = allocatedBytes(threadId) - bytesBefore;
+
+		System.out.println(String.format("%-30s %8d %14.1f %12s %14d", name, units, (double) elapsed / ops,
+				bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / ops), ops));
+	}
+
+	private long loop(Op op, long millis) {
+		long deadline = System.nanoTime() + millis * 1000000L;
+		long ops = 0;
+		// check the clock every batch so timing overhead stays out of the
+		// per-operation numbers
+		int batch = 1;
+		while (System.nanoTime() < deadline) {
+			for (int i = 0; i < batch; i++) {
+				op.run(sink);
+			}
+			ops += batch;
+			if (batch < 1024) {
+				batch *= 2;
+			}
+		}
+		return ops;
+	}
+
+	static long allocatedBytes(long threadId) {
+		return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(threadId);
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (threads.isThreadAllocatedMemorySupported()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+				return threads;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,158 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Plays whole games of RLAgent against combatAgent on generated NvN
+ * scenarios and reports how the agent's cost grows with the unit count:
+ * middleStep latency percentiles, episodes per second, memory allocated per
+ * turn by the game thread (agent and model together) and heap in use after a
+ * full GC. Unlike AgentBenchmark the agent sees real games, so the number of
+ * events per turn and the fight's length are whatever the battle produces.
+ *
+ * Each size is warmed up for WARMUP_TURNS turns, then measured for at least
+ * one episode and until the time budget runs out. SEPIA's own planner takes
+ * seconds per turn at hundreds of footmen per side, so episodes are cut off
+ * after maxTurns turns, 0 for SEPIA's normal limit. The latency and
+ * memory columns are per turn and do not depend on the cut-off, while
+ * episodes per second only compares sizes run with the same one.
+ *
+ * Run with lib/SEPIA.jar, the compiled src and bench folders and
+ * enemy_agents on the classpath, from the directory holding data:
+ *
+ * java edu.cwru.sepia.agent.ScalingBenchmark [sizes] [secondsPerSize]
+ * [maxTurns] [formation] [csvFile]
+ */
+public class ScalingBenchmark {
+
+	private static final String DEFAULT_SIZES = "5,10,25,50,100,250,500";
+	private static final int DEFAULT_MAX_TURNS = 50;
+	private static final int WARMUP_TURNS = 10;
+	private static final int CHART_WIDTH = 50;
+
+	private static class Row {
+		int footmen;
+		int episodes;
+		long turns;
+		double seconds;
+		long p50;
+		long p99;
+		long max;
+		double bytesPerTurn;
+		double heapMegabytes;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String sizes = args.length >= 1 ? args[0] : DEFAULT_SIZES;
+		double secondsPerSize = args.length >= 2 ? Double.parseDouble(args[1]) : 10;
+		int maxTurns = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_MAX_TURNS;
+		ScenarioGenerator.Formation formation = args.length >= 4
+				? ScenarioGenerator.Formation.valueOf(args[3].toUpperCase()) : ScenarioGenerator.Formation.LINE;
+		String csvFile = args.length >= 5 ? args[4] : null;
+
+		ScenarioGenerator generator = new ScenarioGenerator();
+		List<Row> rows = new ArrayList<Row>();
+		System.out.println(String.format("%8s %8s %10s %10s %10s %10s %10s %12s %10s", "Footmen", "Episodes",
+				"Turns/ep", "Episodes/s", "p50 us", "p99 us", "max us", "KB/turn", "Heap MB"));
+		for (String size : sizes.split(",")) {
+			Row row = run(generator, Integer.parseInt(size.trim()), formation, secondsPerSize,
+					maxTurns > 0 ? maxTurns : EpisodeRunner.TIME_LIMIT);
+			rows.add(row);
+			System.out.println(String.format(Locale.ROOT, "%8d %8d %10.1f %10.2f %10.1f %10.1f %10.1f %12.1f %10.1f",
+					row.footmen, row.episodes, (double) row.turns / row.episodes, row.episodes / row.seconds,
+					row.p50 / 1e3, row.p99 / 1e3, row.max / 1e3, row.bytesPerTurn / 1024, row.heapMegabytes));
+		}
+
+		System.out.println();
+		System.out.println("middleStep p50 latency, log scale:");
+		chart(rows);
+
+		if (csvFile != null) {
+			writeCsv(new File(csvFile), rows);
+		}
+	}
+
+	private static Row run(ScenarioGenerator generator, int footmen, ScenarioGenerator.Formation formation,
+			double seconds, int maxTurns) {
+		StateCreator map = generator.creator(footmen, footmen, formation, footmen);
+		RLAgent agent = new RLAgent(0, Integer.MAX_VALUE, null);
+		agent.setHeadless(true);
+		TrainingMetrics metrics = new TrainingMetrics();
+		agent.setMetrics(metrics);
+		Agent enemy = EpisodeRunner.createAgent(TrainingRunner.DEFAULT_ENEMY_AGENT, RLAgent.ENEMY_PLAYERNUM);
+		Agent[] agents = new Agent[] { agent, enemy };
+
+		new EpisodeRunner(map, agents, footmen, Math.min(WARMUP_TURNS, maxTurns)).runEpisode();
+		EpisodeRunner runner = new EpisodeRunner(map, agents, footmen, maxTurns);
+
+		LatencyHistogram.Snapshot before = metrics.middleStepLatency().snapshot();
+		long threadId = Thread.currentThread().getId();
+		long bytesBefore = Microbench.allocatedBytes(threadId);
+		long start = System.nanoTime();
+		long deadline = start + (long) (seconds * 1e9);
+
+		Row row = new Row();
+		row.footmen = footmen;
+		do {
+			row.turns += runner.runEpisode();
+			row.episodes++;
+		} while (System.nanoTime() < deadline);
+		row.seconds = (System.nanoTime() - start) / 1e9;
+
+		long bytes = Microbench.allocatedBytes(threadId) - bytesBefore;
+		LatencyHistogram.Snapshot measured = metrics.middleStepLatency().snapshot().minus(before);
+		row.p50 = measured.percentile(0.5);
+		row.p99 = measured.percentile(0.99);
+		row.max = measured.percentile(1);
+		row.bytesPerTurn = bytesBefore < 0 ? Double.NaN : (double) bytes / row.turns;
+
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		row.heapMegabytes = (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024.0);
+		return row;
+	}
+
+	private static void chart(List<Row> rows) {
+		double lowest = Double.MAX_VALUE;
+		double highest = 0;
+		for (Row row : rows) {
+			double value = Math.log10(Math.max(1, row.p50));
+			lowest = Math.min(lowest, value);
+			highest = Math.max(highest, value);
+		}
+		// start the axis one decade below the fastest size so it still gets
+		// a visible bar
+		lowest = Math.floor(lowest) - 1;
+		for (Row row : rows) {
+			double value = Math.log10(Math.max(1, row.p50));
+			int bar = (int) Math.round(CHART_WIDTH * (value - lowest) / Math.max(1e-9, highest - lowest));
+			StringBuilder line = new StringBuilder(String.format("%6d |", row.footmen));
+			for (int i = 0; i < bar; i++) {
+				line.append('#');
+			}
+			line.append(String.format(Locale.ROOT, " %.1f us", row.p50 / 1e3));
+			System.out.println(line);
+		}
+	}
+
+	private static void writeCsv(File file, List<Row> rows) {
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			out.println("footmen,episodes,turns,seconds,middle_step_p50_ns,middle_step_p99_ns,middle_step_max_ns,"
+					+ "bytes_per_turn,heap_mb");
+			for (Row row : rows) {
+				out.println(String.format(Locale.ROOT, "%d,%d,%d,%.3f,%d,%d,%d,%.1f,%.1f", row.footmen, row.episodes,
+						row.turns, row.seconds, row.p50, row.p99, row.max, row.bytesPerTurn, row.heapMegabytes));
+			}
+		} catch (IOException ex) {
+			System.err.println("Failed to write " + file + ". Reason: " + ex.getMessage());
+		}
+	}
+}
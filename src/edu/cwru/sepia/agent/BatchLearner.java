@@ -0,0 +1,382 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Solves for the Q-function weights in closed form from a recorded
+ * trajectory log, instead of taking one small SGD step per event as
+ * updateWeights does.
+ *
+ * A transition is a footman's decision, the reward logged with its next
+ * decision and the features of that next decision, or a reward and no next
+ * features if the footman's next record is TERMINAL (see TrajectoryRecorder).
+ *
+ * LSTD accumulates A = sum phi (phi - gamma phi')^T and b = sum phi r in one
+ * pass and solves A w = b. It evaluates the policy that played the log.
+ *
+ * FITTED_Q repeats a least-squares regression of phi . w onto r + gamma max
+ * phi' . w_previous. The max is over every candidate of the next decision if
+ * the log recorded candidates, otherwise it is the logged next decision and
+ * each iteration is a SARSA-style policy evaluation.
+ *
+ * Both add ridge * trace / K to the diagonal before solving, so features
+ * that never vary in the log do not make the system singular.
+ *
+ * Each pass splits the log into one range per thread. A thread owns every
+ * episode that starts in its range, reads on into the next range to finish
+ * its last one, and sums into its own K x K matrix and K vector. The partial
+ * sums are added at the end, so the threads share nothing while they run.
+ */
+public class BatchLearner {
+
+	public enum Method {
+		LSTD, FITTED_Q
+	}
+
+	public static final double DEFAULT_RIDGE = 1e-6;
+	public static final int DEFAULT_ITERATIONS = 20;
+	/**
+	 * Where main writes the weights unless told otherwise, next to but not
+	 * over RLAgent.CHECKPOINT_FILE.
+	 */
+	public static final String DEFAULT_OUTPUT_FILE = "agent_weights/batch_weights.bin";
+
+	private final TrajectoryReader log;
+	private final int threads;
+	private final int k;
+	private double gamma = Hyperparameters.DEFAULTS.gamma;
+	private double ridge = DEFAULT_RIDGE;
+	private long transitions;
+
+	/**
+	 * @param log
+	 *            Recorded decisions to learn from
+	 * @param threads
+	 *            Number of threads to accumulate on
+	 */
+	public BatchLearner(TrajectoryReader log, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.log = log;
+		this.threads = threads;
+		this.k = log.numFeatures();
+	}
+
+	public void setGamma(double gamma) {
+		this.gamma = gamma;
+	}
+
+	/**
+	 * @param ridge
+	 *            Regularization, relative to the mean diagonal entry
+	 */
+	public void setRidge(double ridge) {
+		this.ridge = ridge;
+	}
+
+	/**
+	 * @return Transitions in the last pass
+	 */
+	public long getTransitions() {
+		return transitions;
+	}
+
+	/**
+	 * @return LSTD weights of the logged policy
+	 */
+	public double[] lstd() throws InterruptedException {
+		return solve(accumulate(Method.LSTD, null));
+	}
+
+	/**
+	 * @param iterations
+	 *            Number of regressions
+	 * @param initialWeights
+	 *            Weights whose Q-values make the first targets, or null for
+	 *            zeros, which makes the first targets the plain rewards
+	 * @return The last iteration's weights
+	 */
+	public double[] fittedQ(int iterations, double[] initialWeights) throws InterruptedException {
+		double[] weights = initialWeights == null ? new double[k] : initialWeights.clone();
+		for (int i = 0; i < iterations; i++) {
+			weights = solve(accumulate(Method.FITTED_Q, weights));
+		}
+		return weights;
+	}
+
+	public double[] learn(Method method, int iterations) throws InterruptedException {
+		return method == Method.LSTD ? lstd() : fittedQ(iterations, null);
+	}
+
+	/**
+	 * One parallel pass over the log.
+	 *
+	 * @param weights
+	 *            Previous weights for FITTED_Q targets, ignored by LSTD
+	 */
+	private Sums accumulate(final Method method, final double[] weights) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "batch-learner-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			long records = log.records();
+			List<Future<Sums>> parts = new ArrayList<Future<Sums>>();
+			for (int i = 0; i < threads; i++) {
+				final long from = records * i / threads;
+				final long to = records * (i + 1) / threads;
+				parts.add(executor.submit(new Callable<Sums>() {
+					public Sums call() {
+						return accumulateRange(method, weights, from, to);
+					}
+				}));
+			}
+			Sums total = new Sums(k);
+			for (Future<Sums> part : parts) {
+				total.add(part.get());
+			}
+			transitions = total.transitions;
+			return total;
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("Batch learner pass failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Sums the transitions of every episode that starts in [from, to).
+	 */
+	private Sums accumulateRange(Method method, double[] weights, long from, long to) {
+		Sums sums = new Sums(k);
+		if (from == to) {
+			return sums;
+		}
+		// the episode already running at from belongs to the range before
+		int skipEpisode = -1;
+		if (from > 0) {
+			TrajectoryReader.Cursor before = log.cursor(from - 1, from);
+			before.next();
+			skipEpisode = before.episode();
+		}
+
+		TrajectoryReader.Cursor cursor = log.cursor(from, log.records());
+		UnitSet open = new UnitSet();
+		double[] last = new double[16 * k];
+		double[] next = new double[k];
+		double candidateMax = Double.NEGATIVE_INFINITY;
+		int episode = skipEpisode;
+		boolean started = false;
+
+		while (cursor.next()) {
+			if (cursor.episode() != episode) {
+				if (cursor.index() >= to) {
+					break;
+				}
+				episode = cursor.episode();
+				started = true;
+				open.clear();
+				candidateMax = Double.NEGATIVE_INFINITY;
+			}
+			if (!started) {
+				continue;
+			}
+
+			int attacker = cursor.attacker();
+			int flags = cursor.flags();
+			if ((flags & TrajectoryRecorder.TERMINAL) != 0) {
+				if (open.remove(attacker)) {
+					sums.addTransition(last, attacker * k, cursor.reward(), null, 0, 0);
+				}
+				continue;
+			}
+			if ((flags & TrajectoryRecorder.CHOSEN) == 0) {
+				// candidates of a decision come just before its chosen record
+				if (method == Method.FITTED_Q) {
+					candidateMax = Math.max(candidateMax, cursor.dot(weights));
+				}
+				continue;
+			}
+
+			cursor.features(next);
+			if (open.contains(attacker)) {
+				if (method == Method.LSTD) {
+					sums.addTransition(last, attacker * k, cursor.reward(), next, gamma, 0);
+				} else {
+					double nextMax = Math.max(candidateMax, cursor.dot(weights));
+					sums.addTransition(last, attacker * k, cursor.reward() + gamma * nextMax, null, 0, 0);
+				}
+			}
+			candidateMax = Double.NEGATIVE_INFINITY;
+
+			if ((attacker + 1) * k > last.length) {
+				last = Arrays.copyOf(last, Math.max((attacker + 1) * k, last.length * 2));
+			}
+			System.arraycopy(next, 0, last, attacker * k, k);
+			open.add(attacker);
+		}
+		return sums;
+	}
+
+	/**
+	 * Solves (A + ridge * trace / K * I) w = b by Gaussian elimination with
+	 * partial pivoting.
+	 */
+	private double[] solve(Sums sums) {
+		double[][] a = new double[k][k + 1];
+		double trace = 0;
+		for (int i = 0; i < k; i++) {
+			trace += Math.abs(sums.a[i * k + i]);
+		}
+		double lambda = ridge * Math.max(trace / k, 1e-12);
+		for (int i = 0; i < k; i++) {
+			for (int j = 0; j < k; j++) {
+				a[i][j] = sums.a[i * k + j];
+			}
+			a[i][i] += lambda;
+			a[i][k] = sums.b[i];
+		}
+
+		for (int column = 0; column < k; column++) {
+			int pivot = column;
+			for (int row = column + 1; row < k; row++) {
+				if (Math.abs(a[row][column]) > Math.abs(a[pivot][column])) {
+					pivot = row;
+				}
+			}
+			double[] swap = a[column];
+			a[column] = a[pivot];
+			a[pivot] = swap;
+			if (a[column][column] == 0) {
+				throw new IllegalStateException("Singular system, try a larger ridge");
+			}
+			for (int row = column + 1; row < k; row++) {
+				double factor = a[row][column] / a[column][column];
+				for (int j = column; j <= k; j++) {
+					a[row][j] -= factor * a[column][j];
+				}
+			}
+		}
+		double[] weights = new double[k];
+		for (int row = k - 1; row >= 0; row--) {
+			double sum = a[row][k];
+			for (int j = row + 1; j < k; j++) {
+				sum -= a[row][j] * weights[j];
+			}
+			weights[row] = sum / a[row][row];
+		}
+		return weights;
+	}
+
+	/**
+	 * One thread's sums, A row-major.
+	 */
+	private static class Sums {
+		final int k;
+		final double[] a;
+		final double[] b;
+		long transitions;
+
+		Sums(int k) {
+			this.k = k;
+			this.a = new double[k * k];
+			this.b = new double[k];
+		}
+
+		/**
+		 * Adds phi (phi - discount next)^T to A and phi target to B.
+		 *
+		 * @param next
+		 *            Features of the next decision, or null for none
+		 */
+		void addTransition(double[] phi, int offset, double target, double[] next, double discount, int nextOffset) {
+			for (int i = 0; i < k; i++) {
+				double p = phi[offset + i];
+				if (p == 0) {
+					continue;
+				}
+				int row = i * k;
+				for (int j = 0; j < k; j++) {
+					double d = phi[offset + j];
+					if (next != null) {
+						d -= discount * next[nextOffset + j];
+					}
+					a[row + j] += p * d;
+				}
+				b[i] += p * target;
+			}
+			transitions++;
+		}
+
+		void add(Sums other) {
+			for (int i = 0; i < a.length; i++) {
+				a[i] += other.a[i];
+			}
+			for (int i = 0; i < b.length; i++) {
+				b[i] += other.b[i];
+			}
+			transitions += other.transitions;
+		}
+	}
+
+	/**
+	 * Usage: BatchLearner trajectoryDirectory [LSTD|FITTED_Q] [iterations]
+	 * [threads] [outputFile] [mapFile games]
+	 *
+	 * Writes the weights as a checkpoint to outputFile, DEFAULT_OUTPUT_FILE
+	 * if missing, and with a map plays that many greedy games with them. To
+	 * have RLAgent's loadWeights pick them up, pass RLAgent.CHECKPOINT_FILE
+	 * (agent_weights/weights.bin) as outputFile, which replaces the training
+	 * checkpoint.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: BatchLearner trajectoryDirectory [LSTD|FITTED_Q] [iterations] [threads] "
+					+ "[outputFile] [mapFile games]");
+			return;
+		}
+		Method method = args.length >= 2 ? Method.valueOf(args[1].toUpperCase()) : Method.LSTD;
+		int iterations = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+		int threads = args.length >= 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		TrajectoryReader log = new TrajectoryReader(new File(args[0]));
+		BatchLearner learner = new BatchLearner(log, threads);
+		long start = System.nanoTime();
+		double[] weights = learner.learn(method, iterations);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ROOT, "%s over %d transitions (%d records) in %.3f s: %s", method,
+				learner.getTransitions(), log.records(), seconds, Arrays.toString(weights)));
+		File output = new File(args.length >= 5 ? args[4] : DEFAULT_OUTPUT_FILE);
+		WeightCheckpointer.write(output, 0, weights);
+		System.out.println("Weights written to " + output);
+
+		if (args.length >= 7) {
+			int games = Integer.parseInt(args[6]);
+			// the log only records how many features there were, and the
+			// recorder writes either the standard or the path features
+			FeatureExtractor.Factory features = weights.length == FeatureExtractor.sizeOf(FeatureExtractor.STANDARD)
+					? FeatureExtractor.STANDARD : DistanceFields.WITH_PATH_FEATURES;
+			int won = new PolicyServer(weights, features).play(args[5], TrainingRunner.DEFAULT_ENEMY_AGENT, games,
+					threads, 0);
+			System.out.println(String.format("%d of %d greedy games won", won, games));
+		}
+	}
+}
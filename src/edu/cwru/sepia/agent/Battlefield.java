@@ -0,0 +1,179 @@
+package edu.cwru.sepia.agent;
+
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+
+/**
+ * What a footman agent knows about the game: the living footmen of both
+ * sides, the HP and location of every unit, where each side stands and what
+ * happened on the last turn. Kept up to date incrementally by calling update
+ * every turn.
+ *
+ * One instance per agent, reused across episodes.
+ */
+public class Battlefield {
+
+	private final int playernum;
+	private final int enemyPlayernum;
+
+	private final UnitSet myFootmen = new UnitSet();
+	private final UnitSet enemyFootmen = new UnitSet();
+	private final UnitTable units = new UnitTable();
+	private final TurnDigest digest = new TurnDigest();
+	private OccupancyGrid grid;
+	private boolean[] obstacles = new boolean[0];
+	private int version = 0;
+
+	/**
+	 * @param playernum
+	 *            Player whose footmen are "mine"
+	 * @param enemyPlayernum
+	 *            Player whose footmen are the enemy
+	 */
+	public Battlefield(int playernum, int enemyPlayernum) {
+		this.playernum = playernum;
+		this.enemyPlayernum = enemyPlayernum;
+	}
+
+	/**
+	 * Forgets the previous episode and finds the footmen of both players.
+	 * Units other than footmen are reported and ignored.
+	 */
+	public void start(State.StateView stateView) {
+		if (grid == null || grid.getXExtent() != stateView.getXExtent()
+				|| grid.getYExtent() != stateView.getYExtent()) {
+			grid = new OccupancyGrid(stateView.getXExtent(), stateView.getYExtent(),
+					Math.max(playernum, enemyPlayernum) + 1);
+		} else {
+			grid.clear();
+		}
+		version++;
+
+		// resource nodes never move, so they are read once per episode
+		obstacles = new boolean[stateView.getXExtent() * stateView.getYExtent()];
+		for (ResourceNode.ResourceView resource : stateView.getAllResourceNodes()) {
+			obstacles[resource.getYPosition() * stateView.getXExtent() + resource.getXPosition()] = true;
+		}
+
+		findFootmen(stateView, playernum, myFootmen);
+		findFootmen(stateView, enemyPlayernum, enemyFootmen);
+	}
+
+	/**
+	 * Reads this turn's unit positions and last turn's deaths.
+	 *
+	 * @return true if something happened that calls for new orders: the first
+	 *         turn, a death, or damage to my footmen
+	 */
+	public boolean update(State.StateView state, History.HistoryView history) {
+		version++;
+		for (Unit.UnitView unit : state.getAllUnits()) {
+			int unitId = unit.getID();
+			int x = unit.getXPosition();
+			int y = unit.getYPosition();
+			if (myFootmen.contains(unitId)) {
+				moveOnGrid(playernum, unitId, x, y);
+			} else if (enemyFootmen.contains(unitId)) {
+				moveOnGrid(enemyPlayernum, unitId, x, y);
+			}
+			units.update(unitId, unit.getHP(), x, y);
+		}
+
+		digest.update(state, history, playernum);
+		if (state.getTurnNumber() <= 0) {
+			return true;
+		}
+		for (int i = 0; i < digest.deathCount(); i++) {
+			int deadId = digest.deadUnit(i);
+			int controller = digest.deadController(i);
+			if (controller == enemyPlayernum) {
+				if (enemyFootmen.remove(deadId)) {
+					grid.remove(enemyPlayernum, units.x(deadId), units.y(deadId));
+				}
+			} else if (controller == playernum) {
+				if (myFootmen.remove(deadId)) {
+					grid.remove(playernum, units.x(deadId), units.y(deadId));
+				}
+			}
+		}
+		// a death or any damage to my footmen is an event
+		return digest.deathCount() > 0 || digest.damageTakenByPlayer(playernum) > 0;
+	}
+
+	public UnitSet myFootmen() {
+		return myFootmen;
+	}
+
+	public UnitSet enemyFootmen() {
+		return enemyFootmen;
+	}
+
+	public UnitTable units() {
+		return units;
+	}
+
+	public OccupancyGrid grid() {
+		return grid;
+	}
+
+	/**
+	 * @return Cells no unit can enter, indexed y * xExtent + x. A new array
+	 *         every episode.
+	 */
+	public boolean[] obstacles() {
+		return obstacles;
+	}
+
+	/**
+	 * @return A number that changes on every start and update, for caches
+	 *         built from this battlefield
+	 */
+	public int version() {
+		return version;
+	}
+
+	/**
+	 * @return Summary of the last turn, as of the last update
+	 */
+	public TurnDigest digest() {
+		return digest;
+	}
+
+	public int getPlayernum() {
+		return playernum;
+	}
+
+	public int getEnemyPlayernum() {
+		return enemyPlayernum;
+	}
+
+	private void findFootmen(State.StateView stateView, int player, UnitSet footmen) {
+		footmen.clear();
+		for (Integer unitId : stateView.getUnitIds(player)) {
+			Unit.UnitView unit = stateView.getUnit(unitId);
+
+			String unitName = unit.getTemplateView().getName().toLowerCase();
+			if (unitName.equals("footman")) {
+				footmen.add(unitId);
+				units.update(unitId, unit.getHP(), unit.getXPosition(), unit.getYPosition());
+				grid.add(player, unit.getXPosition(), unit.getYPosition());
+			} else {
+				System.err.println("Unknown unit type: " + unitName);
+			}
+		}
+	}
+
+	/**
+	 * Moves a tracked footman on the occupancy grid if it changed cells since
+	 * the last update. Must be called before the unit table is updated.
+	 */
+	private void moveOnGrid(int player, int unitId, int x, int y) {
+		int oldX = units.x(unitId);
+		int oldY = units.y(unitId);
+		if (oldX != x || oldY != y) {
+			grid.move(player, oldX, oldY, x, y);
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Walking distances over the map, for features that account for what is in
+ * the way instead of the straight-line distance Position gives.
+ *
+ * A field is a breadth-first search over the map's cells, moving in the
+ * eight directions SEPIA moves units in and never entering an obstacle from
+ * Battlefield.obstacles. Each enemy gets its own field, kept until that enemy
+ * moves, and one multi-source field gives every cell's distance to the
+ * nearest enemy, rebuilt at most once per Battlefield update. Fields are
+ * built the first time they are read after a change, so a decision pays
+ * O(map cells) for every enemy that moved and nothing per attacker.
+ *
+ * Units are not obstacles here. They move every turn and would invalidate
+ * every field on every update.
+ *
+ * Example:
+ *
+ * agent.setFeatureFactory(DistanceFields.WITH_PATH_FEATURES);
+ *
+ * which gives the agent the standard features followed by features() over
+ * its own battlefield. Evaluators and policy servers given the same factory
+ * build their own fields for every game they play.
+ */
+public class DistanceFields {
+
+	/**
+	 * Builds the standard features followed by the path features of a new
+	 * DistanceFields over the given battlefield.
+	 */
+	public static final FeatureExtractor.Factory WITH_PATH_FEATURES = new FeatureExtractor.Factory() {
+		public FeatureExtractor create(Battlefield battlefield) {
+			return FeatureExtractor.standard(battlefield.getEnemyPlayernum())
+					.plus(new DistanceFields(battlefield).features());
+		}
+	};
+
+	private final Battlefield battlefield;
+
+	private boolean[] obstacles;
+	private int width;
+	private int[] queue = new int[0];
+
+	/**
+	 * Field of each enemy, indexed by unit ID, and the cell the enemy stood
+	 * on when it was built.
+	 */
+	private int[][] fieldOf = new int[0][];
+	private int[] sourceOf = new int[0];
+
+	private int[] nearest = new int[0];
+	private int nearestVersion = -1;
+
+	private long searches;
+
+	/**
+	 * @param battlefield
+	 *            Battlefield of the agent whose features use the fields
+	 */
+	public DistanceFields(Battlefield battlefield) {
+		this.battlefield = battlefield;
+	}
+
+	/**
+	 * @return Steps from (x, y) to the cell the enemy stands on, or
+	 *         unreachable() if there is no way there
+	 */
+	public int distance(int enemy, int x, int y) {
+		checkMap();
+		int source = cell(battlefield.units().x(enemy), battlefield.units().y(enemy));
+		if (enemy >= fieldOf.length) {
+			int oldLength = fieldOf.length;
+			fieldOf = Arrays.copyOf(fieldOf, Math.max(enemy + 1, oldLength * 2));
+			sourceOf = Arrays.copyOf(sourceOf, fieldOf.length);
+			Arrays.fill(sourceOf, oldLength, sourceOf.length, -1);
+		}
+		int[] field = fieldOf[enemy];
+		if (field == null || sourceOf[enemy] != source) {
+			if (field == null) {
+				field = new int[obstacles.length];
+				fieldOf[enemy] = field;
+			}
+			search(field, new int[] { source }, 1);
+			sourceOf[enemy] = source;
+		}
+		return field[cell(x, y)];
+	}
+
+	/**
+	 * @return Steps from (x, y) to the nearest living enemy, or unreachable()
+	 */
+	public int nearestEnemyDistance(int x, int y) {
+		checkMap();
+		if (nearestVersion != battlefield.version()) {
+			UnitSet enemies = battlefield.enemyFootmen();
+			int[] sources = new int[enemies.size()];
+			for (int i = 0; i < sources.length; i++) {
+				int enemy = enemies.get(i);
+				sources[i] = cell(battlefield.units().x(enemy), battlefield.units().y(enemy));
+			}
+			search(nearest, sources, sources.length);
+			nearestVersion = battlefield.version();
+		}
+		return nearest[cell(x, y)];
+	}
+
+	/**
+	 * @return The distance of cells that cannot be reached, larger than any
+	 *         real one
+	 */
+	public int unreachable() {
+		return obstacles == null ? Integer.MAX_VALUE : obstacles.length;
+	}
+
+	/**
+	 * @return Number of searches run so far
+	 */
+	public long getSearches() {
+		return searches;
+	}
+
+	/**
+	 * @return The path features, in this order: steps for the attacker to get
+	 *         next to the defender (PAIR) and steps for the attacker to get
+	 *         next to its nearest enemy (ATTACKER)
+	 */
+	public Feature[] features() {
+		return new Feature[] { new PathDistance(), new NearestEnemyDistance() };
+	}
+
+	/**
+	 * Drops every field when a new episode brings a new obstacle map.
+	 */
+	private void checkMap() {
+		boolean[] current = battlefield.obstacles();
+		if (current == obstacles) {
+			return;
+		}
+		obstacles = current;
+		width = battlefield.grid().getXExtent();
+		if (queue.length != current.length) {
+			queue = new int[current.length];
+			nearest = new int[current.length];
+			Arrays.fill(fieldOf, null);
+		}
+		Arrays.fill(sourceOf, -1);
+		nearestVersion = -1;
+	}
+
+	/**
+	 * Breadth-first search from the given cells. Sources may stand on
+	 * obstacles.
+	 */
+	private void search(int[] field, int[] sources, int count) {
+		int unreachable = unreachable();
+		Arrays.fill(field, unreachable);
+		int height = field.length / width;
+		int head = 0;
+		int tail = 0;
+		for (int i = 0; i < count; i++) {
+			if (field[sources[i]] != 0) {
+				field[sources[i]] = 0;
+				queue[tail++] = sources[i];
+			}
+		}
+		while (head < tail) {
+			int cell = queue[head++];
+			int x = cell % width;
+			int y = cell / width;
+			int next = field[cell] + 1;
+			for (int dy = -1; dy <= 1; dy++) {
+				int ny = y + dy;
+				if (ny < 0 || ny >= height) {
+					continue;
+				}
+				for (int dx = -1; dx <= 1; dx++) {
+					int nx = x + dx;
+					if (nx < 0 || nx >= width) {
+						continue;
+					}
+					int neighbour = ny * width + nx;
+					if (field[neighbour] == unreachable && !obstacles[neighbour]) {
+						field[neighbour] = next;
+						queue[tail++] = neighbour;
+					}
+				}
+			}
+		}
+		searches++;
+	}
+
+	private int cell(int x, int y) {
+		return y * width + x;
+	}
+
+	/**
+	 * Steps the attacker needs to stand next to the defender. An attacker
+	 * already next to it needs 0.
+	 */
+	private class PathDistance implements Feature {
+		public Scope scope() {
+			return Scope.PAIR;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			return Math.max(0, distance(defender, units.x(attacker), units.y(attacker)) - 1);
+		}
+	}
+
+	private class NearestEnemyDistance implements Feature {
+		public Scope scope() {
+			return Scope.ATTACKER;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			return Math.max(0, nearestEnemyDistance(units.x(attacker), units.y(attacker)) - 1);
+		}
+	}
+}
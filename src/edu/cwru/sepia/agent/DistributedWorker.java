@@ -0,0 +1,125 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * One process of a distributed training run. Plays headless games with its
+ * own RLAgent, learning as usual, and every syncEpisodes episodes pushes the
+ * change in its weights since the last sync to a ParameterServer, then
+ * continues from the weights the server sends back.
+ *
+ * The change is taken as the difference between the weights now and the
+ * weights last received, which is what updateWeights and replay added
+ * together, normalization included. The server rescales after adding it,
+ * see ParameterServer.
+ */
+public class DistributedWorker {
+
+	public static final int DEFAULT_SYNC_EPISODES = 5;
+
+	private final String host;
+	private final int port;
+	private final String mapFile;
+	private final String enemyAgentClass;
+	private final int syncEpisodes;
+	private final boolean compress;
+	private final int seed;
+
+	/**
+	 * @param host
+	 *            Parameter server host
+	 * @param port
+	 *            Parameter server port
+	 * @param mapFile
+	 *            SEPIA state XML to train on
+	 * @param syncEpisodes
+	 *            Episodes between pushes
+	 * @param compress
+	 *            true to deflate pushed deltas
+	 * @param seed
+	 *            Seed of the model and the agent's exploration. Give every
+	 *            worker a different one.
+	 */
+	public DistributedWorker(String host, int port, String mapFile, int syncEpisodes, boolean compress, int seed) {
+		if (syncEpisodes < 1) {
+			throw new IllegalArgumentException("syncEpisodes must be at least 1");
+		}
+		this.host = host;
+		this.port = port;
+		this.mapFile = mapFile;
+		this.enemyAgentClass = TrainingRunner.DEFAULT_ENEMY_AGENT;
+		this.syncEpisodes = syncEpisodes;
+		this.compress = compress;
+		this.seed = seed;
+	}
+
+	/**
+	 * Plays the given number of episodes, starting from the server's
+	 * weights.
+	 *
+	 * @return This worker's learning curve and counts, with the server's
+	 *         weights as of the last push
+	 */
+	public TrainingResult train(int episodes) throws IOException {
+		StateCreator map = EpisodeRunner.loadMap(mapFile);
+		RLAgent agent = new RLAgent(0, episodes, null);
+		agent.setHeadless(true);
+		agent.random.setSeed(seed);
+		TrainingMetrics metrics = new TrainingMetrics();
+		agent.setMetrics(metrics);
+		Agent enemy = EpisodeRunner.createAgent(enemyAgentClass, RLAgent.ENEMY_PLAYERNUM);
+		EpisodeRunner runner = new EpisodeRunner(map, new Agent[] { agent, enemy }, seed);
+
+		ParameterClient client = new ParameterClient(host, port, agent.weights.length, compress);
+		try {
+			client.pull(agent.weights);
+			double[] base = agent.weights.clone();
+			double[] delta = new double[base.length];
+			long syncedUpdates = 0;
+			int syncedEpisodes = 0;
+
+			long start = System.nanoTime();
+			long turns = 0;
+			while (!agent.isFinished()) {
+				turns += runner.runEpisode();
+				int played = agent.getEpisodesPlayed();
+				if (played % syncEpisodes == 0 || agent.isFinished()) {
+					for (int i = 0; i < delta.length; i++) {
+						delta[i] = agent.weights[i] - base[i];
+					}
+					long updates = metrics.getWeightUpdates();
+					// the agent keeps its array, so write the answer into it
+					client.push(delta, (int) (updates - syncedUpdates), played - syncedEpisodes, agent.weights);
+					System.arraycopy(agent.weights, 0, base, 0, base.length);
+					syncedUpdates = updates;
+					syncedEpisodes = played;
+				}
+			}
+			return new TrainingResult(agent.weights.clone(), agent.getLearningCurve(), agent.getEpisodesPlayed(),
+					agent.getGamesWon(), turns, System.nanoTime() - start);
+		} finally {
+			client.close();
+		}
+	}
+
+	/**
+	 * Usage: DistributedWorker host port mapFile episodes [syncEpisodes]
+	 * [compress] [seed]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println("Usage: DistributedWorker host port mapFile episodes [syncEpisodes] [compress] [seed]");
+			return;
+		}
+		int syncEpisodes = args.length >= 5 ? Integer.parseInt(args[4]) : DEFAULT_SYNC_EPISODES;
+		boolean compress = args.length >= 6 && Boolean.parseBoolean(args[5]);
+		int seed = args.length >= 7 ? Integer.parseInt(args[6]) : 0;
+		DistributedWorker worker = new DistributedWorker(args[0], Integer.parseInt(args[1]), args[2], syncEpisodes,
+				compress, seed);
+
+		TrainingResult result = worker.train(Integer.parseInt(args[3]));
+		System.out.println("worker " + seed + ": " + result);
+	}
+}
@@ -0,0 +1,171 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.SimultaneousTurnTracker;
+import edu.cwru.sepia.environment.TurnTracker;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.Model;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+
+/**
+ * Plays SEPIA episodes on the calling thread. This does the same turn loop as
+ * SEPIA's Environment (every agent sees the state, all actions are queued,
+ * the model steps) but without the per-agent threads Environment starts and
+ * never stops, so it can be created and thrown away as often as needed inside
+ * one JVM.
+ *
+ * The model is a SimpleModel, which is what SEPIA's SimpleModelEpisodicRunner
+ * builds, set up the same way as the ModelParameters block in
+ * data/10fv10fConfig.xml.
+ */
+public class EpisodeRunner {
+
+	public static final int TIME_LIMIT = 100000;
+
+	private final Agent[] agents;
+	private final Model model;
+	private final TurnTracker turnTracker;
+
+	/**
+	 * @param stateCreator
+	 *            Creates the starting state of every episode
+	 * @param agents
+	 *            One agent per player on the map
+	 * @param seed
+	 *            Seed for the model and turn order
+	 */
+	public EpisodeRunner(StateCreator stateCreator, Agent[] agents, int seed) {
+		this(stateCreator, agents, seed, TIME_LIMIT);
+	}
+
+	/**
+	 * @param timeLimit
+	 *            Turn after which an episode ends even if both sides still
+	 *            have footmen
+	 */
+	public EpisodeRunner(StateCreator stateCreator, Agent[] agents, int seed, int timeLimit) {
+		this.agents = agents;
+
+		Configuration configuration = new Configuration();
+		configuration.put(ConfigurationValues.MODEL_CONQUEST.key, true);
+		configuration.put(ConfigurationValues.MODEL_MIDAS.key, false);
+		configuration.put(ConfigurationValues.MODEL_MANIFEST_DESTINY.key, false);
+		configuration.put(ConfigurationValues.MODEL_TIME_LIMIT.key, timeLimit);
+
+		this.model = new SimpleModel(stateCreator.createState(), seed, stateCreator, configuration);
+		this.turnTracker = new SimultaneousTurnTracker(new Random(seed));
+		for (Agent agent : agents) {
+			this.turnTracker.addPlayer(agent.getPlayerNumber());
+		}
+		this.model.setTurnTracker(this.turnTracker);
+	}
+
+	/**
+	 * Plays one episode from the starting state to the end, including every
+	 * agent's terminalStep.
+	 *
+	 * @return Number of turns the episode lasted
+	 */
+	public int runEpisode() {
+		model.createNewWorld();
+		turnTracker.newEpisodeAndStep();
+
+		int turns = 0;
+		do {
+			step();
+			turns++;
+		} while (!model.isTerminated());
+
+		State state = model.getState();
+		for (Agent agent : agents) {
+			int player = agent.getPlayerNumber();
+			agent.terminalStep(state.getView(player), model.getHistory().getView(player));
+		}
+		return turns;
+	}
+
+	public Model getModel() {
+		return model;
+	}
+
+	private void step() {
+		State state = model.getState();
+		for (Agent agent : agents) {
+			if (!turnTracker.isAgentsTurn(agent)) {
+				continue;
+			}
+			int player = agent.getPlayerNumber();
+			State.StateView stateView = state.getView(player);
+			Map<Integer, Action> actions = turnTracker.hasHadTurnBefore(player)
+					? agent.middleStep(stateView, model.getHistory().getView(player))
+					: agent.initialStep(stateView, model.getHistory().getView(player));
+			if (actions != null) {
+				model.addActions(new HashMap<Integer, Action>(actions), player);
+			}
+		}
+		model.executeStep();
+		turnTracker.newStep();
+	}
+
+	/**
+	 * Loads a SEPIA state XML file, for example data/rl_10fv10f.xml.
+	 *
+	 * @param mapFile
+	 *            Path to the state file
+	 * @return A creator that builds a fresh copy of the state on every call
+	 * @throws IOException
+	 *             If the file cannot be read or parsed
+	 */
+	public static StateCreator loadMap(String mapFile) throws IOException {
+		File path = new File(mapFile);
+		if (!path.exists()) {
+			throw new IOException("Map file does not exist: " + mapFile);
+		}
+		try {
+			XmlState xml = (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(path);
+			return new XmlStateCreator(xml);
+		} catch (JAXBException ex) {
+			throw new IOException("Failed to parse map " + mapFile + ". Reason: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Instantiates an agent the same way SEPIA does from a config file: through
+	 * its (int, String[]) constructor when arguments are given, otherwise
+	 * through its (int) constructor.
+	 *
+	 * @param className
+	 *            Agent class, for example combatAgent
+	 * @param playernum
+	 *            Player the agent controls
+	 * @param args
+	 *            Arguments the config would pass
+	 * @return The new agent
+	 */
+	public static Agent createAgent(String className, int playernum, String... args) {
+		try {
+			Class<?> agentClass = Class.forName(className);
+			if (args.length == 0) {
+				return (Agent) agentClass.getConstructor(int.class).newInstance(playernum);
+			}
+			return (Agent) agentClass.getConstructor(int.class, String[].class).newInstance(playernum,
+					(Object) args);
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalArgumentException("Could not create agent " + className + ". Reason: " + ex, ex);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * One term of the Q-function's feature vector. Each feature declares which
+ * units it depends on so FeatureExtractor and QMatrix can compute it once per
+ * attacker or once per defender instead of once per pair.
+ */
+public interface Feature {
+
+	enum Scope {
+		/**
+		 * Depends only on the attacking footman.
+		 */
+		ATTACKER,
+		/**
+		 * Depends only on the defending enemy.
+		 */
+		DEFENDER,
+		/**
+		 * Depends on both.
+		 */
+		PAIR
+	}
+
+	Scope scope();
+
+	/**
+	 * @param units
+	 *            Current HP and location of every unit
+	 * @param grid
+	 *            Where each player's footmen stand
+	 * @param attacker
+	 *            Attacking footman. Not read by DEFENDER features.
+	 * @param defender
+	 *            Defending enemy. Not read by ATTACKER features.
+	 * @return The feature's value
+	 */
+	double value(UnitTable units, OccupancyGrid grid, int attacker, int defender);
+}
@@ -0,0 +1,232 @@
+package edu.cwru.sepia.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ordered set of Features, feature i going with weight i. Besides the full
+ * vector used for learning updates, it gives the Q-value in three parts so a
+ * decision round can compute the attacker part once per footman, the
+ * defender part once per enemy and only the pair part for every combination:
+ *
+ * Q(a, d) = attackerTerm(a) + defenderTerm(d) + pairTerm(a, d)
+ *
+ * standard() is the feature set RLAgent was written for. QMatrix has a
+ * specialised path for it and uses these methods for any other set.
+ *
+ * Features may keep caches of one game's battlefield, as DistanceFields does,
+ * so code that plays several games at once takes a Factory and builds one
+ * extractor per game.
+ */
+public class FeatureExtractor {
+
+	/**
+	 * Builds the extractor for one game. Every extractor a factory builds has
+	 * the same features in the same order.
+	 */
+	public interface Factory {
+		FeatureExtractor create(Battlefield battlefield);
+	}
+
+	/**
+	 * Builds standard() extractors.
+	 */
+	public static final Factory STANDARD = new Factory() {
+		public FeatureExtractor create(Battlefield battlefield) {
+			return standard(battlefield.getEnemyPlayernum());
+		}
+	};
+
+	private final Feature[] features;
+	private final int[] attackerFeatures;
+	private final int[] defenderFeatures;
+	private final int[] pairFeatures;
+	private final boolean standard;
+
+	/**
+	 * @param features
+	 *            Features in weight order
+	 */
+	public FeatureExtractor(List<Feature> features) {
+		this(features.toArray(new Feature[features.size()]), false);
+	}
+
+	private FeatureExtractor(Feature[] features, boolean standard) {
+		this.features = features;
+		this.attackerFeatures = indicesOf(features, Feature.Scope.ATTACKER);
+		this.defenderFeatures = indicesOf(features, Feature.Scope.DEFENDER);
+		this.pairFeatures = indicesOf(features, Feature.Scope.PAIR);
+		this.standard = standard;
+	}
+
+	/**
+	 * The RLAgent.NUM_FEATURES features of the original agent:
+	 *
+	 * 0 a constant, 1 attacker HP, 2 defender HP, 3 defender HP / attacker HP
+	 * (integer division, defender HP / 0.5 for a dead attacker), 4 0.5 if the
+	 * two are adjacent, 5 enemies adjacent to the defender.
+	 *
+	 * @param enemyPlayer
+	 *            Player the defenders belong to
+	 */
+	public static FeatureExtractor standard(int enemyPlayer) {
+		return new FeatureExtractor(new Feature[] { new Constant(), new AttackerHP(), new DefenderHP(),
+				new HPRatio(), new Adjacent(), new DefenderSurrounded(enemyPlayer) }, true);
+	}
+
+	/**
+	 * @return A new extractor with this one's features followed by the given
+	 *         ones
+	 */
+	public FeatureExtractor plus(Feature... extra) {
+		List<Feature> all = new ArrayList<Feature>(Arrays.asList(features));
+		all.addAll(Arrays.asList(extra));
+		return new FeatureExtractor(all);
+	}
+
+	public int size() {
+		return features.length;
+	}
+
+	/**
+	 * @return Number of features the factory's extractors have
+	 */
+	public static int sizeOf(Factory factory) {
+		return factory.create(new Battlefield(0, RLAgent.ENEMY_PLAYERNUM)).size();
+	}
+
+	public Feature get(int index) {
+		return features[index];
+	}
+
+	/**
+	 * @return true if these are exactly the standard features
+	 */
+	public boolean isStandard() {
+		return standard;
+	}
+
+	/**
+	 * Fills the full feature vector of one pair.
+	 *
+	 * @param out
+	 *            Array of at least size() entries to write into
+	 * @return out, for chaining
+	 */
+	public double[] extract(UnitTable units, OccupancyGrid grid, int attacker, int defender, double[] out) {
+		for (int i = 0; i < features.length; i++) {
+			out[i] = features[i].value(units, grid, attacker, defender);
+		}
+		return out;
+	}
+
+	public double attackerTerm(UnitTable units, OccupancyGrid grid, int attacker, double[] weights) {
+		return term(attackerFeatures, units, grid, attacker, -1, weights);
+	}
+
+	public double defenderTerm(UnitTable units, OccupancyGrid grid, int defender, double[] weights) {
+		return term(defenderFeatures, units, grid, -1, defender, weights);
+	}
+
+	public double pairTerm(UnitTable units, OccupancyGrid grid, int attacker, int defender, double[] weights) {
+		return term(pairFeatures, units, grid, attacker, defender, weights);
+	}
+
+	private double term(int[] indices, UnitTable units, OccupancyGrid grid, int attacker, int defender,
+			double[] weights) {
+		double sum = 0;
+		for (int i : indices) {
+			sum += weights[i] * features[i].value(units, grid, attacker, defender);
+		}
+		return sum;
+	}
+
+	private static int[] indicesOf(Feature[] features, Feature.Scope scope) {
+		int count = 0;
+		for (Feature feature : features) {
+			if (feature.scope() == scope) {
+				count++;
+			}
+		}
+		int[] indices = new int[count];
+		count = 0;
+		for (int i = 0; i < features.length; i++) {
+			if (features[i].scope() == scope) {
+				indices[count++] = i;
+			}
+		}
+		return indices;
+	}
+
+	private static class Constant implements Feature {
+		public Scope scope() {
+			return Scope.ATTACKER;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			return 1;
+		}
+	}
+
+	private static class AttackerHP implements Feature {
+		public Scope scope() {
+			return Scope.ATTACKER;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			return units.hp(attacker);
+		}
+	}
+
+	private static class DefenderHP implements Feature {
+		public Scope scope() {
+			return Scope.DEFENDER;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			return units.hp(defender);
+		}
+	}
+
+	private static class HPRatio implements Feature {
+		public Scope scope() {
+			return Scope.PAIR;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			int attackerHP = units.hp(attacker);
+			int defenderHP = units.hp(defender);
+			if (attackerHP == 0) {
+				return defenderHP / .5d;
+			}
+			return defenderHP / attackerHP;
+		}
+	}
+
+	private static class Adjacent implements Feature {
+		public Scope scope() {
+			return Scope.PAIR;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			return units.isAdjacent(defender, attacker) ? 0.5 : 0;
+		}
+	}
+
+	private static class DefenderSurrounded implements Feature {
+		private final int enemyPlayer;
+
+		DefenderSurrounded(int enemyPlayer) {
+			this.enemyPlayer = enemyPlayer;
+		}
+
+		public Scope scope() {
+			return Scope.DEFENDER;
+		}
+
+		public double value(UnitTable units, OccupancyGrid grid, int attacker, int defender) {
+			return grid.countAdjacent(enemyPlayer, units.x(defender), units.y(defender));
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Batched weight updates. Instead of moving the weights once per footman as
+ * updateWeights does, RLAgent adds every footman's TD gradient here and the
+ * sum is applied once every window events. Every footman of an event is then
+ * scored against the same weights, so the result does not depend on the
+ * order the footmen are visited in, and the weights are scanned and
+ * renormalized once per window instead of once per footman.
+ *
+ * Before it is applied the summed gradient can be clipped to a maximum
+ * Euclidean norm, and then goes through one of:
+ *
+ * SGD, w += rate * g,
+ *
+ * MOMENTUM, v = beta1 * v + g, w += rate * v,
+ *
+ * ADAM, the bias-corrected first and second moment estimates of g with
+ * beta1, beta2 and EPSILON, w += rate * m / (sqrt(v) + EPSILON).
+ *
+ * All state is kept in primitive arrays sized once, so applying allocates
+ * nothing.
+ */
+public class GradientAccumulator {
+
+	public enum Optimizer {
+		SGD, MOMENTUM, ADAM
+	}
+
+	public static final double DEFAULT_BETA1 = 0.9;
+	public static final double DEFAULT_BETA2 = 0.999;
+	public static final double EPSILON = 1e-8;
+
+	private final Optimizer optimizer;
+	private final int window;
+	private final double maxNorm;
+	private final boolean normalize;
+	private double beta1 = DEFAULT_BETA1;
+	private double beta2 = DEFAULT_BETA2;
+
+	private final double[] gradient;
+	private final double[] first;
+	private final double[] second;
+	private int pending;
+	private int events;
+	private long steps;
+
+	/**
+	 * @param numFeatures
+	 *            Number of weights
+	 * @param optimizer
+	 *            How the summed gradient moves the weights
+	 * @param window
+	 *            Events whose gradients are summed before applying them
+	 * @param maxNorm
+	 *            Largest Euclidean norm of an applied gradient, 0 for no
+	 *            clipping
+	 * @param normalize
+	 *            true to rescale the weights into [-1, 1] after each step, as
+	 *            updateWeights does
+	 */
+	public GradientAccumulator(int numFeatures, Optimizer optimizer, int window, double maxNorm, boolean normalize) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be at least 1");
+		}
+		if (maxNorm < 0) {
+			throw new IllegalArgumentException("maxNorm must not be negative");
+		}
+		this.optimizer = optimizer;
+		this.window = window;
+		this.maxNorm = maxNorm;
+		this.normalize = normalize;
+		this.gradient = new double[numFeatures];
+		this.first = new double[optimizer == Optimizer.SGD ? 0 : numFeatures];
+		this.second = new double[optimizer == Optimizer.ADAM ? numFeatures : 0];
+	}
+
+	/**
+	 * Sets the decay rates of the moment estimates. beta2 only matters for
+	 * ADAM.
+	 */
+	public void setBetas(double beta1, double beta2) {
+		this.beta1 = beta1;
+		this.beta2 = beta2;
+	}
+
+	public int numFeatures() {
+		return gradient.length;
+	}
+
+	public boolean isNormalizing() {
+		return normalize;
+	}
+
+	/**
+	 * @return Steps applied so far
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Adds one footman's TD gradient, tdError * features.
+	 */
+	public void add(double tdError, double[] features) {
+		for (int i = 0; i < gradient.length; i++) {
+			gradient[i] += tdError * features[i];
+		}
+		pending++;
+	}
+
+	/**
+	 * Ends an event and applies the sum if the window is full.
+	 *
+	 * @return true if the weights were changed
+	 */
+	public boolean endEvent(double[] weights, double learningRate) {
+		events++;
+		if (events < window) {
+			return false;
+		}
+		return flush(weights, learningRate);
+	}
+
+	/**
+	 * Applies whatever has been added, for example at the end of an episode.
+	 *
+	 * @return true if the weights were changed
+	 */
+	public boolean flush(double[] weights, double learningRate) {
+		events = 0;
+		if (pending == 0) {
+			return false;
+		}
+		pending = 0;
+		clip();
+
+		steps++;
+		switch (optimizer) {
+		case SGD:
+			for (int i = 0; i < weights.length; i++) {
+				weights[i] += learningRate * gradient[i];
+			}
+			break;
+		case MOMENTUM:
+			for (int i = 0; i < weights.length; i++) {
+				first[i] = beta1 * first[i] + gradient[i];
+				weights[i] += learningRate * first[i];
+			}
+			break;
+		case ADAM:
+			double correction1 = 1 - Math.pow(beta1, steps);
+			double correction2 = 1 - Math.pow(beta2, steps);
+			for (int i = 0; i < weights.length; i++) {
+				first[i] = beta1 * first[i] + (1 - beta1) * gradient[i];
+				second[i] = beta2 * second[i] + (1 - beta2) * gradient[i] * gradient[i];
+				weights[i] += learningRate * (first[i] / correction1)
+						/ (Math.sqrt(second[i] / correction2) + EPSILON);
+			}
+			break;
+		}
+		Arrays.fill(gradient, 0);
+		return true;
+	}
+
+	/**
+	 * Forgets the pending gradient and the optimizer's history.
+	 */
+	public void reset() {
+		Arrays.fill(gradient, 0);
+		Arrays.fill(first, 0);
+		Arrays.fill(second, 0);
+		pending = 0;
+		events = 0;
+		steps = 0;
+	}
+
+	private void clip() {
+		if (maxNorm == 0) {
+			return;
+		}
+		double squared = 0;
+		for (double value : gradient) {
+			squared += value * value;
+		}
+		if (squared > maxNorm * maxNorm) {
+			double scale = maxNorm / Math.sqrt(squared);
+			for (int i = 0; i < gradient.length; i++) {
+				gradient[i] *= scale;
+			}
+		}
+	}
+}
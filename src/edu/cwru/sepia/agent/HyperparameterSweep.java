@@ -0,0 +1,398 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Trains one RLAgent per configuration of gamma, learningRate and epsilon and
+ * ranks them by how often they win. Configurations train in parallel, each
+ * with its own agent, enemy, model and copy of the map.
+ *
+ * Every configuration gets its own stream split off a SplittableRandom seeded
+ * with the sweep seed. The stream seeds the agent's exploration, the model
+ * and, when no initial weights are given, the starting weights, so a
+ * configuration's own choices do not depend on how many threads the sweep
+ * uses or which configurations it runs next to. The shipped combatAgent draws
+ * from Math.random, so with that enemy the games themselves still vary from
+ * run to run.
+ *
+ * With early stopping on, all surviving configurations train to the next
+ * rung, every rungEpisodes episodes, and are scored by the fraction of games
+ * they won since the previous rung. Only the best 1 / reductionFactor of them
+ * are sure to continue. The others continue too unless they scored more than
+ * margin below the worst of those, so configurations whose curves are close
+ * are not cut on noise. Every rung waits for all survivors, so which
+ * configurations are stopped does not depend on which finished first.
+ *
+ * Example:
+ *
+ * List<SweepResult> ranked = new HyperparameterSweep("data/rl_5fv5f.xml", 200,
+ * 4, 0).run(HyperparameterSweep.grid(new double[] { 0.8, 0.9 }, new double[] {
+ * 1e-4, 1e-3 }, new double[] { .02 }));
+ */
+public class HyperparameterSweep {
+
+	public static final int DEFAULT_REDUCTION_FACTOR = 3;
+	public static final double DEFAULT_MARGIN = 0.05;
+
+	private final String mapFile;
+	private final String enemyAgentClass;
+	private final int episodes;
+	private final int threads;
+	private final long seed;
+	private double[] initialWeights;
+	private int rungEpisodes;
+	private int reductionFactor = DEFAULT_REDUCTION_FACTOR;
+	private double margin = DEFAULT_MARGIN;
+
+	/**
+	 * @param mapFile
+	 *            SEPIA state XML every configuration trains on
+	 * @param episodes
+	 *            Number of episodes each configuration trains for if it is not
+	 *            stopped early
+	 * @param threads
+	 *            Number of configurations to train at once
+	 * @param seed
+	 *            Seed of the SplittableRandom the configurations' streams are
+	 *            split from
+	 */
+	public HyperparameterSweep(String mapFile, int episodes, int threads, long seed) {
+		this(mapFile, TrainingRunner.DEFAULT_ENEMY_AGENT, episodes, threads, seed);
+	}
+
+	public HyperparameterSweep(String mapFile, String enemyAgentClass, int episodes, int threads, long seed) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.mapFile = mapFile;
+		this.enemyAgentClass = enemyAgentClass;
+		this.episodes = episodes;
+		this.threads = threads;
+		this.seed = seed;
+		// four rungs by default, on block boundaries so a rung never splits a
+		// block of learning and evaluation episodes
+		this.rungEpisodes = Math.max(10, episodes / 40 * 10);
+	}
+
+	/**
+	 * Starts every configuration from the same weights instead of weights
+	 * drawn from its own stream.
+	 *
+	 * @param initialWeights
+	 *            NUM_FEATURES starting weights, copied, or null for random
+	 *            weights
+	 */
+	public void setInitialWeights(double[] initialWeights) {
+		if (initialWeights != null && initialWeights.length != RLAgent.NUM_FEATURES) {
+			throw new IllegalArgumentException(
+					"Expected " + RLAgent.NUM_FEATURES + " initial weights, got " + initialWeights.length);
+		}
+		this.initialWeights = initialWeights == null ? null : initialWeights.clone();
+	}
+
+	/**
+	 * @param rungEpisodes
+	 *            Episodes between rungs, or 0 to train every configuration for
+	 *            all episodes
+	 * @param reductionFactor
+	 *            At least one in reductionFactor configurations continues past
+	 *            each rung
+	 * @param margin
+	 *            How far below the best configurations' score a configuration
+	 *            has to fall to be stopped
+	 */
+	public void setEarlyStopping(int rungEpisodes, int reductionFactor, double margin) {
+		if (rungEpisodes < 0 || reductionFactor < 1 || margin < 0) {
+			throw new IllegalArgumentException("Invalid early stopping settings");
+		}
+		this.rungEpisodes = rungEpisodes;
+		this.reductionFactor = reductionFactor;
+		this.margin = margin;
+	}
+
+	/**
+	 * Every combination of the given values.
+	 */
+	public static List<Hyperparameters> grid(double[] gammas, double[] learningRates, double[] epsilons) {
+		List<Hyperparameters> space = new ArrayList<Hyperparameters>();
+		for (double gamma : gammas) {
+			for (double learningRate : learningRates) {
+				for (double epsilon : epsilons) {
+					space.add(new Hyperparameters(gamma, learningRate, epsilon));
+				}
+			}
+		}
+		return space;
+	}
+
+	/**
+	 * Configurations drawn uniformly from the given ranges, except the
+	 * learning rate which is drawn uniformly on a log scale.
+	 *
+	 * @param count
+	 *            Number of configurations
+	 * @param gamma
+	 *            Lowest and highest gamma
+	 * @param learningRate
+	 *            Lowest and highest learning rate, both positive
+	 * @param epsilon
+	 *            Lowest and highest epsilon
+	 * @param random
+	 *            Source of the samples
+	 */
+	public static List<Hyperparameters> random(int count, double[] gamma, double[] learningRate, double[] epsilon,
+			SplittableRandom random) {
+		double logRateMin = Math.log(learningRate[0]);
+		double logRateMax = Math.log(learningRate[1]);
+		List<Hyperparameters> space = new ArrayList<Hyperparameters>();
+		for (int i = 0; i < count; i++) {
+			space.add(new Hyperparameters(uniform(random, gamma[0], gamma[1]),
+					Math.exp(uniform(random, logRateMin, logRateMax)), uniform(random, epsilon[0], epsilon[1])));
+		}
+		return space;
+	}
+
+	private static double uniform(SplittableRandom random, double min, double max) {
+		return min == max ? min : random.nextDouble(min, max);
+	}
+
+	/**
+	 * Trains every configuration and ranks them.
+	 *
+	 * @return One result per configuration, best first. Configurations that
+	 *         reached a later rung rank above those stopped earlier.
+	 */
+	public List<SweepResult> run(List<Hyperparameters> space) throws InterruptedException {
+		SplittableRandom root = new SplittableRandom(seed);
+		List<Trial> active = new ArrayList<Trial>();
+		for (int i = 0; i < space.size(); i++) {
+			active.add(new Trial(i, space.get(i), root.split()));
+		}
+		List<Trial> done = new ArrayList<Trial>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "sweep-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			int rung = rungEpisodes > 0 ? Math.min(rungEpisodes, episodes) : episodes;
+			while (!active.isEmpty()) {
+				trainTo(executor, active, rung);
+				for (int i = active.size() - 1; i >= 0; i--) {
+					if (active.get(i).agent.isFinished()) {
+						done.add(active.remove(i));
+					}
+				}
+				stopDominated(active, done);
+				rung = Math.min(rung + rungEpisodes, episodes);
+			}
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("Sweep configuration failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		List<SweepResult> results = new ArrayList<SweepResult>();
+		for (Trial trial : done) {
+			results.add(trial.result());
+		}
+		Collections.sort(results, RANKING);
+		return results;
+	}
+
+	private void trainTo(ExecutorService executor, List<Trial> trials, final int rung)
+			throws InterruptedException, ExecutionException {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final Trial trial : trials) {
+			futures.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					trial.trainTo(rung);
+					return null;
+				}
+			}));
+		}
+		// the futures also publish each trial's state to the next thread to
+		// train it
+		for (Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	private void stopDominated(List<Trial> active, List<Trial> done) {
+		if (rungEpisodes == 0 || active.size() <= 1) {
+			return;
+		}
+		List<Trial> ranked = new ArrayList<Trial>(active);
+		Collections.sort(ranked, new Comparator<Trial>() {
+			public int compare(Trial a, Trial b) {
+				return Double.compare(b.score, a.score);
+			}
+		});
+		int keep = (ranked.size() + reductionFactor - 1) / reductionFactor;
+		double threshold = ranked.get(keep - 1).score - margin;
+		for (int i = active.size() - 1; i >= 0; i--) {
+			Trial trial = active.get(i);
+			if (trial.score < threshold) {
+				trial.stopped = true;
+				done.add(active.remove(i));
+			}
+		}
+	}
+
+	/**
+	 * Later rung first, then higher score, then higher final reward.
+	 */
+	private static final Comparator<SweepResult> RANKING = new Comparator<SweepResult>() {
+		public int compare(SweepResult a, SweepResult b) {
+			if (a.training.episodes != b.training.episodes) {
+				return Integer.compare(b.training.episodes, a.training.episodes);
+			}
+			if (a.score != b.score) {
+				return Double.compare(b.score, a.score);
+			}
+			return Double.compare(b.finalReward(), a.finalReward());
+		}
+	};
+
+	/**
+	 * One configuration and the agent training it. Only touched by one thread
+	 * at a time.
+	 */
+	private class Trial {
+		final int index;
+		final Hyperparameters hyperparameters;
+		final long agentSeed;
+		final int modelSeed;
+		final RLAgent agent;
+		EpisodeRunner runner;
+		long turns = 0;
+		long elapsedNanos = 0;
+		int rungWins = 0;
+		int rungEpisode = 0;
+		double score = 0;
+		boolean stopped = false;
+
+		Trial(int index, Hyperparameters hyperparameters, SplittableRandom stream) {
+			this.index = index;
+			this.hyperparameters = hyperparameters;
+			this.agentSeed = stream.nextLong();
+			this.modelSeed = stream.nextInt();
+			double[] start = initialWeights;
+			if (start == null) {
+				start = new double[RLAgent.NUM_FEATURES];
+				for (int i = 0; i < start.length; i++) {
+					start[i] = stream.nextDouble(-1, 1);
+				}
+			}
+			this.agent = new RLAgent(0, episodes, start, hyperparameters);
+			this.agent.setHeadless(true);
+			this.agent.random.setSeed(agentSeed);
+		}
+
+		void trainTo(int rung) throws IOException {
+			if (runner == null) {
+				StateCreator map = EpisodeRunner.loadMap(mapFile);
+				Agent enemy = EpisodeRunner.createAgent(enemyAgentClass, RLAgent.ENEMY_PLAYERNUM);
+				runner = new EpisodeRunner(map, new Agent[] { agent, enemy }, modelSeed);
+			}
+			long start = System.nanoTime();
+			while (agent.getEpisodesPlayed() < rung) {
+				turns += runner.runEpisode();
+			}
+			elapsedNanos += System.nanoTime() - start;
+
+			int played = agent.getEpisodesPlayed() - rungEpisode;
+			score = played == 0 ? 0 : (agent.getGamesWon() - rungWins) / (double) played;
+			rungWins = agent.getGamesWon();
+			rungEpisode = agent.getEpisodesPlayed();
+		}
+
+		SweepResult result() {
+			TrainingResult training = new TrainingResult(agent.weights.clone(), agent.getLearningCurve(),
+					agent.getEpisodesPlayed(), agent.getGamesWon(), turns, elapsedNanos);
+			return new SweepResult(index, hyperparameters, agentSeed, training, score, stopped);
+		}
+	}
+
+	/**
+	 * Prints one line per result in the order given.
+	 */
+	public static void printTable(List<SweepResult> results) {
+		System.out.println(String.format(Locale.ROOT, "%4s %4s %6s %10s %7s %8s %6s %7s %10s %8s", "rank", "id",
+				"gamma", "rate", "epsilon", "episodes", "won", "score", "reward", "status"));
+		for (int i = 0; i < results.size(); i++) {
+			SweepResult result = results.get(i);
+			System.out.println(String.format(Locale.ROOT, "%4d %4d %6.3f %10.2e %7.3f %8d %6d %7.3f %10.2f %8s", i + 1,
+					result.index, result.hyperparameters.gamma, result.hyperparameters.learningRate,
+					result.hyperparameters.epsilon, result.training.episodes, result.training.gamesWon, result.score,
+					result.finalReward(), result.stopped ? "stopped" : "done"));
+		}
+	}
+
+	/**
+	 * Runs a sweep from the command line and prints the ranked table.
+	 *
+	 * Usage: HyperparameterSweep mapFile episodes (grid | random count)
+	 * [threads] [seed] [weightsFile]
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3 || (args[2].equals("random") && args.length < 4)) {
+			System.err.println(
+					"Usage: HyperparameterSweep mapFile episodes (grid | random count) [threads] [seed] [weightsFile]");
+			return;
+		}
+		int episodes = Integer.parseInt(args[1]);
+		int next = 3;
+		int count = 0;
+		if (args[2].equals("random")) {
+			count = Integer.parseInt(args[next++]);
+		}
+		int threads = args.length > next ? Integer.parseInt(args[next]) : Runtime.getRuntime().availableProcessors();
+		next++;
+		long seed = args.length > next ? Long.parseLong(args[next]) : 0;
+		next++;
+
+		HyperparameterSweep sweep = new HyperparameterSweep(args[0], episodes, threads, seed);
+		if (args.length > next) {
+			sweep.setInitialWeights(RLAgent.readWeights(new File(args[next])));
+		}
+
+		List<Hyperparameters> space;
+		if (args[2].equals("random")) {
+			// seeded differently from run so the samples do not repeat any
+			// configuration's stream
+			space = random(count, new double[] { 0.8, 0.99 }, new double[] { 1e-5, 1e-3 },
+					new double[] { 0, 0.1 }, new SplittableRandom(~seed));
+		} else {
+			space = grid(new double[] { 0.8, 0.9, 0.99 }, new double[] { 1e-5, 1e-4, 1e-3 },
+					new double[] { .01, .02, .05 });
+		}
+
+		long start = System.nanoTime();
+		List<SweepResult> results = sweep.run(space);
+		System.out.println(String.format(Locale.ROOT, "%d configurations on %d threads in %.1f s", space.size(),
+				threads, (System.nanoTime() - start) / 1e9));
+		printTable(results);
+	}
+}
@@ -0,0 +1,48 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Locale;
+
+/**
+ * Learning parameters of an RLAgent. Immutable, so one instance can be shared
+ * by any number of agents.
+ */
+public final class Hyperparameters {
+
+	/**
+	 * The values set by the assignment definition.
+	 */
+	public static final Hyperparameters DEFAULTS = new Hyperparameters(0.9, .0001, .02);
+
+	public final double gamma;
+	public final double learningRate;
+	public final double epsilon;
+
+	/**
+	 * @param gamma
+	 *            Discount factor, in [0, 1]
+	 * @param learningRate
+	 *            Step size of every weight update, positive
+	 * @param epsilon
+	 *            Probability of a random attack in learning episodes, in [0,
+	 *            1]
+	 */
+	public Hyperparameters(double gamma, double learningRate, double epsilon) {
+		if (!(gamma >= 0 && gamma <= 1)) {
+			throw new IllegalArgumentException("gamma must be in [0, 1]: " + gamma);
+		}
+		if (!(learningRate > 0)) {
+			throw new IllegalArgumentException("learningRate must be positive: " + learningRate);
+		}
+		if (!(epsilon >= 0 && epsilon <= 1)) {
+			throw new IllegalArgumentException("epsilon must be in [0, 1]: " + epsilon);
+		}
+		this.gamma = gamma;
+		this.learningRate = learningRate;
+		this.epsilon = epsilon;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "gamma=%.3f learningRate=%.2e epsilon=%.3f", gamma, learningRate, epsilon);
+	}
+}
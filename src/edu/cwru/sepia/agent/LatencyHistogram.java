@@ -0,0 +1,134 @@
+package edu.cwru.sepia.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Values are counted in
+ * log-linear buckets: every power of two range is split into 8 equal
+ * buckets, so any recorded value is known to within 12.5% while the whole
+ * range of a long fits in under 500 counters. Values below 8 are exact.
+ *
+ * Recording is one atomic increment, so any number of threads can record
+ * into the same histogram. Readers take a Snapshot, and subtracting two
+ * snapshots gives the histogram of just the values recorded in between.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            Duration to record. Negative values count as 0.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		long seen = max.get();
+		while (value > seen && !max.compareAndSet(seen, value)) {
+			seen = max.get();
+		}
+	}
+
+	/**
+	 * @return Largest value recorded, exact
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Copies the current counts. Values recorded while the copy is taken may
+	 * or may not be included.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return Largest value that falls in the bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Bucket counts at one point in time.
+	 */
+	public static class Snapshot {
+
+		private final long[] counts;
+		private final long total;
+
+		private Snapshot(long[] counts) {
+			this.counts = counts;
+			long sum = 0;
+			for (long count : counts) {
+				sum += count;
+			}
+			this.total = sum;
+		}
+
+		/**
+		 * @return Number of values recorded
+		 */
+		public long count() {
+			return total;
+		}
+
+		/**
+		 * @param quantile
+		 *            Between 0 and 1, for example 0.99
+		 * @return Upper bound of the bucket holding the quantile, or 0 if
+		 *         nothing was recorded
+		 */
+		public long percentile(double quantile) {
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return upperBound(i);
+				}
+			}
+			return upperBound(counts.length - 1);
+		}
+
+		/**
+		 * @return Values recorded after the earlier snapshot was taken
+		 */
+		public Snapshot minus(Snapshot earlier) {
+			long[] difference = new long[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				difference[i] = counts[i] - earlier.counts[i];
+			}
+			return new Snapshot(difference);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the learning curve as it is produced instead of at the end of the
+ * run, so a crash loses at most the blocks since the last flush and memory
+ * does not grow with the length of the run.
+ *
+ * TEXT writes averageReward.txt and count.txt in the layout RLAgent used to
+ * write them in at the end of a run. BINARY writes averageReward.bin:
+ *
+ * int magic 'QLRC', int version, then per block int block number and double
+ * average cumulative reward, big-endian.
+ *
+ * A curve of Measure.EPISODE values goes to averageEpisodeReward.txt or
+ * averageEpisodeReward.bin instead, with its own heading, so it is not read
+ * as the cumulative curve.
+ *
+ * Both formats are started from scratch when the log is opened, like the
+ * files RLAgent rewrote at the end of a run.
+ */
+public class LearningCurveLog {
+
+	public enum Format {
+		TEXT, BINARY
+	}
+
+	/**
+	 * What a block's value is. Interleaved training averages the run's
+	 * cumulative reward at each evaluation episode; SnapshotEvaluator
+	 * averages the reward of each evaluation episode alone.
+	 */
+	public enum Measure {
+		CUMULATIVE("Average Cumulative Reward", "averageReward"), EPISODE("Average Episode Reward",
+				"averageEpisodeReward");
+
+		public final String label;
+		private final String file;
+
+		Measure(String label, String file) {
+			this.label = label;
+			this.file = file;
+		}
+
+		public String textFile() {
+			return file + ".txt";
+		}
+
+		public String binaryFile() {
+			return file + ".bin";
+		}
+	}
+
+	public static final int MAGIC = 0x514C5243;
+	public static final int VERSION = 1;
+
+	public static final String TEXT_FILE = "averageReward.txt";
+	public static final String COUNT_FILE = "count.txt";
+	public static final String BINARY_FILE = "averageReward.bin";
+
+	private final int flushEvery;
+	private int unflushed;
+
+	private BufferedWriter rewards;
+	private BufferedWriter counts;
+	private DataOutputStream binary;
+
+	/**
+	 * @param directory
+	 *            Directory to write into, for example average_reward
+	 * @param format
+	 *            File layout
+	 * @param measure
+	 *            What the appended values are, which picks the file names
+	 * @param flushEvery
+	 *            Flush to the operating system after this many blocks
+	 */
+	public LearningCurveLog(File directory, Format format, Measure measure, int flushEvery) {
+		this.flushEvery = Math.max(1, flushEvery);
+		directory.mkdirs();
+
+		try {
+			if (format == Format.TEXT) {
+				rewards = new BufferedWriter(new FileWriter(new File(directory, measure.textFile()), false));
+				counts = new BufferedWriter(new FileWriter(new File(directory, COUNT_FILE), false));
+				rewards.write(measure.label + " \n");
+				rewards.write(measure.label.replaceAll(".", "-") + " \n");
+			} else {
+				File file = new File(directory, measure.binaryFile());
+				binary = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+				binary.writeInt(MAGIC);
+				binary.writeInt(VERSION);
+			}
+			flush();
+		} catch (IOException ex) {
+			System.err.println("Failed to open learning curve log. Reason: " + ex.getMessage());
+			close();
+		}
+	}
+
+	public LearningCurveLog(File directory, Format format, int flushEvery) {
+		this(directory, format, Measure.CUMULATIVE, flushEvery);
+	}
+
+	/**
+	 * Appends a finished block.
+	 *
+	 * @param block
+	 *            Block number, counting from 0. Block i covers episodes 10 * i
+	 *            to 10 * i + 9.
+	 * @param averageReward
+	 *            Value of the block, in the log's Measure
+	 */
+	public void append(int block, double averageReward) {
+		try {
+			if (rewards != null) {
+				rewards.write(String.format("%.2f", averageReward) + "\n");
+				counts.write(Integer.toString(10 * block) + "\n");
+			} else if (binary != null) {
+				binary.writeInt(block);
+				binary.writeDouble(averageReward);
+			}
+			if (++unflushed >= flushEvery) {
+				flush();
+			}
+		} catch (IOException ex) {
+			System.err.println("Failed to write learning curve. Reason: " + ex.getMessage());
+		}
+	}
+
+	public void flush() throws IOException {
+		unflushed = 0;
+		if (rewards != null) {
+			rewards.flush();
+			counts.flush();
+		}
+		if (binary != null) {
+			binary.flush();
+		}
+	}
+
+	public void close() {
+		try {
+			if (rewards != null) {
+				rewards.close();
+			}
+			if (counts != null) {
+				counts.close();
+			}
+			if (binary != null) {
+				binary.close();
+			}
+		} catch (IOException ex) {
+			System.err.println("Failed to close learning curve log. Reason: " + ex.getMessage());
+		}
+		rewards = null;
+		counts = null;
+		binary = null;
+	}
+
+	/**
+	 * Reads a binary learning curve. A partly written last block, as left by a
+	 * crash, is ignored.
+	 *
+	 * @return Value of each block, in file order
+	 * @throws IOException
+	 *             If the file is not a binary learning curve
+	 */
+	public static List<Double> readBinary(File path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path.toPath())));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a learning curve: " + path);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported learning curve version " + version + ": " + path);
+			}
+			List<Double> curve = new ArrayList<Double>();
+			while (true) {
+				try {
+					in.readInt(); // block
+					curve.add(in.readDouble());
+				} catch (EOFException ex) {
+					return curve;
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
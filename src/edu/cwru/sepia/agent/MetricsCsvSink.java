@@ -0,0 +1,162 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends one CSV row of TrainingMetrics to a file at a fixed interval, from
+ * a background thread. Rates, win rate, reward, TD error and latency
+ * percentiles and allocation in a row cover only that interval, so a throughput drop or a
+ * stall shows up in the row where it happened instead of being averaged into
+ * the whole run.
+ */
+public class MetricsCsvSink {
+
+	public static final String HEADER = "timestamp_millis,elapsed_seconds,episodes,episodes_per_second,"
+			+ "turns_per_second,win_rate,mean_episode_reward,weight_updates_per_second,mean_abs_td_error,"
+			+ "middle_step_p50_micros,middle_step_p99_micros,middle_step_max_micros,assign_action_p99_micros,"
+			+ "allocated_bytes_per_turn";
+
+	private final TrainingMetrics metrics;
+	private final File path;
+	private final ScheduledExecutorService timer;
+
+	private long lastNanos;
+	private long lastEpisodes;
+	private long lastTurns;
+	private long lastWins;
+	private double lastReward;
+	private long lastUpdates;
+	private double lastTdError;
+	private long lastAllocated;
+	private long lastAllocationTurns;
+	private LatencyHistogram.Snapshot lastMiddleStep;
+	private LatencyHistogram.Snapshot lastAssignAction;
+
+	/**
+	 * Starts writing. The header is written first if the file is new or
+	 * empty.
+	 *
+	 * @param metrics
+	 *            Metrics to sample
+	 * @param path
+	 *            CSV file to append to
+	 * @param intervalSeconds
+	 *            Seconds between rows
+	 */
+	public MetricsCsvSink(TrainingMetrics metrics, File path, long intervalSeconds) {
+		this.metrics = metrics;
+		this.path = path;
+		this.lastNanos = metrics.elapsedNanos();
+		this.lastMiddleStep = metrics.middleStepLatency().snapshot();
+		this.lastAssignAction = metrics.assignActionLatency().snapshot();
+
+		path.getAbsoluteFile().getParentFile().mkdirs();
+		if (path.length() == 0) {
+			append(HEADER);
+		}
+
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "metrics-csv-sink");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				writeRow();
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the timer and writes a last row covering the time since the
+	 * previous one.
+	 */
+	public void close() {
+		timer.shutdown();
+		try {
+			timer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		writeRow();
+	}
+
+	private synchronized void writeRow() {
+		long nanos = metrics.elapsedNanos();
+		long episodes = metrics.getEpisodes();
+		long turns = metrics.getTurns();
+		long wins = metrics.getGamesWon();
+		double reward = metrics.getEpisodeRewardSum();
+		long updates = metrics.getWeightUpdates();
+		double tdError = metrics.getAbsTdErrorSum();
+		long allocated = metrics.getAllocatedBytes();
+		long allocationTurns = metrics.getAllocationTurns();
+		LatencyHistogram.Snapshot middleStep = metrics.middleStepLatency().snapshot();
+		LatencyHistogram.Snapshot assignAction = metrics.assignActionLatency().snapshot();
+
+		double seconds = (nanos - lastNanos) / 1e9;
+		long intervalEpisodes = episodes - lastEpisodes;
+		long intervalUpdates = updates - lastUpdates;
+		LatencyHistogram.Snapshot intervalMiddleStep = middleStep.minus(lastMiddleStep);
+
+		StringBuilder row = new StringBuilder();
+		row.append(System.currentTimeMillis()).append(',');
+		row.append(String.format(Locale.ROOT, "%.1f", nanos / 1e9)).append(',');
+		row.append(episodes).append(',');
+		row.append(String.format(Locale.ROOT, "%.2f", intervalEpisodes / seconds)).append(',');
+		row.append(String.format(Locale.ROOT, "%.2f", (turns - lastTurns) / seconds)).append(',');
+		row.append(String.format(Locale.ROOT, "%.4f", ratio(wins - lastWins, intervalEpisodes))).append(',');
+		row.append(String.format(Locale.ROOT, "%.2f", ratio(reward - lastReward, intervalEpisodes))).append(',');
+		row.append(String.format(Locale.ROOT, "%.2f", intervalUpdates / seconds)).append(',');
+		row.append(String.format(Locale.ROOT, "%.6f", ratio(tdError - lastTdError, intervalUpdates))).append(',');
+		row.append(micros(intervalMiddleStep.percentile(0.5))).append(',');
+		row.append(micros(intervalMiddleStep.percentile(0.99))).append(',');
+		row.append(micros(intervalMiddleStep.percentile(1.0))).append(',');
+		row.append(micros(assignAction.minus(lastAssignAction).percentile(0.99))).append(',');
+		// -1 when the JVM does not count allocation, like the MBean
+		double bytesPerTurn = ratio(allocated - lastAllocated, allocationTurns - lastAllocationTurns);
+		row.append(allocated < 0 ? "-1" : String.format(Locale.ROOT, "%.0f", bytesPerTurn));
+		append(row.toString());
+
+		lastNanos = nanos;
+		lastEpisodes = episodes;
+		lastTurns = turns;
+		lastWins = wins;
+		lastReward = reward;
+		lastUpdates = updates;
+		lastTdError = tdError;
+		lastAllocated = allocated;
+		lastAllocationTurns = allocationTurns;
+		lastMiddleStep = middleStep;
+		lastAssignAction = assignAction;
+	}
+
+	private void append(String line) {
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(path, true));
+			writer.write(line);
+			writer.write("\n");
+			writer.close();
+		} catch (IOException ex) {
+			System.err.println("Failed to write metrics. Reason: " + ex.getMessage());
+		}
+	}
+
+	private static double ratio(double numerator, long denominator) {
+		return denominator == 0 ? 0 : numerator / denominator;
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
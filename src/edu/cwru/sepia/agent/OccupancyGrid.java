@@ -0,0 +1,105 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Per-player unit counts for every cell of the map, kept up to date as units
+ * move and die. Lets the agent count the units of a player around a cell by
+ * reading the 3x3 block around it, which is the same neighbourhood
+ * {@link Position#isAdjacent(Position)} accepts, instead of testing every
+ * unit.
+ *
+ * The grid has a one cell border on every side so neighbourhood reads never
+ * need bounds checks.
+ */
+public class OccupancyGrid {
+
+	private final int xExtent;
+	private final int yExtent;
+	private final int stride;
+	private final int[][] counts;
+
+	/**
+	 * @param xExtent
+	 *            X dimension size of the map (get this from the StateView
+	 *            object)
+	 * @param yExtent
+	 *            Y dimension size of the map (get this from the StateView
+	 *            object)
+	 * @param players
+	 *            Number of players. Player numbers must be below this.
+	 */
+	public OccupancyGrid(int xExtent, int yExtent, int players) {
+		this.xExtent = xExtent;
+		this.yExtent = yExtent;
+		this.stride = xExtent + 2;
+		this.counts = new int[players][stride * (yExtent + 2)];
+	}
+
+	public int getXExtent() {
+		return xExtent;
+	}
+
+	public int getYExtent() {
+		return yExtent;
+	}
+
+	/**
+	 * Records a unit of the player at (x, y).
+	 */
+	public void add(int player, int x, int y) {
+		counts[player][cell(x, y)]++;
+	}
+
+	/**
+	 * Forgets a unit of the player at (x, y), for example when it dies.
+	 */
+	public void remove(int player, int x, int y) {
+		counts[player][cell(x, y)]--;
+	}
+
+	/**
+	 * Moves a unit of the player from one cell to another.
+	 */
+	public void move(int player, int fromX, int fromY, int toX, int toY) {
+		int[] playerCounts = counts[player];
+		playerCounts[cell(fromX, fromY)]--;
+		playerCounts[cell(toX, toY)]++;
+	}
+
+	/**
+	 * @return Number of the player's units at (x, y)
+	 */
+	public int count(int player, int x, int y) {
+		return counts[player][cell(x, y)];
+	}
+
+	/**
+	 * Counts the player's units on (x, y) and the eight cells around it.
+	 *
+	 * @return Number of units a unit at (x, y) is adjacent to, counting a unit
+	 *         standing on (x, y) itself
+	 */
+	public int countAdjacent(int player, int x, int y) {
+		int[] playerCounts = counts[player];
+		int center = cell(x, y);
+		int above = center - stride;
+		int below = center + stride;
+		return playerCounts[above - 1] + playerCounts[above] + playerCounts[above + 1] + playerCounts[center - 1]
+				+ playerCounts[center] + playerCounts[center + 1] + playerCounts[below - 1] + playerCounts[below]
+				+ playerCounts[below + 1];
+	}
+
+	/**
+	 * Empties the grid.
+	 */
+	public void clear() {
+		for (int[] playerCounts : counts) {
+			Arrays.fill(playerCounts, 0);
+		}
+	}
+
+	private int cell(int x, int y) {
+		return (y + 1) * stride + x + 1;
+	}
+}
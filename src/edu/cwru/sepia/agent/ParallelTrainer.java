@@ -0,0 +1,260 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Trains one weight vector with several SEPIA games running on separate
+ * threads. Each worker has its own agent, enemy, model and copy of the map,
+ * so the only thing the workers share is the weights.
+ *
+ * In HOGWILD mode every agent reads and updates the same double[] with no
+ * locking. Updates from different workers can interleave or overwrite each
+ * other, which with only a few weights and small learning steps costs far
+ * less than the contention a lock would add. Each update is followed by a
+ * rescale of the whole vector to [-1, 1], and two rescales at once would
+ * rescale each other's half-written results. A shared flag lets only one
+ * worker rescale at a time; the others skip theirs without waiting, and
+ * their updates are taken in by the rescale in progress or the next one. An
+ * update written while a rescale is running can still be lost, like any
+ * other racing update, but the vector is only ever rescaled once at a time.
+ *
+ * In AVERAGING mode each worker trains its own copy and every syncInterval
+ * episodes the workers meet at a barrier where all copies are replaced by
+ * their average. If a worker fails it resets the barrier and the others are
+ * interrupted, so train throws instead of waiting for a round that will
+ * never complete.
+ */
+public class ParallelTrainer {
+
+	public enum Mode {
+		HOGWILD, AVERAGING
+	}
+
+	private final String mapFile;
+	private final String enemyAgentClass;
+	private final int threads;
+	private final Mode mode;
+	private final int syncInterval;
+	private int seed;
+
+	/**
+	 * @param mapFile
+	 *            SEPIA state XML every worker plays on
+	 * @param threads
+	 *            Number of games to run at once
+	 * @param mode
+	 *            How the workers share weights
+	 * @param syncInterval
+	 *            Episodes between averaging rounds. Ignored in HOGWILD mode.
+	 */
+	public ParallelTrainer(String mapFile, int threads, Mode mode, int syncInterval) {
+		this(mapFile, TrainingRunner.DEFAULT_ENEMY_AGENT, threads, mode, syncInterval, 0);
+	}
+
+	public ParallelTrainer(String mapFile, String enemyAgentClass, int threads, Mode mode, int syncInterval,
+			int seed) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		if (syncInterval < 1) {
+			throw new IllegalArgumentException("syncInterval must be at least 1");
+		}
+		this.mapFile = mapFile;
+		this.enemyAgentClass = enemyAgentClass;
+		this.threads = threads;
+		this.mode = mode;
+		this.syncInterval = syncInterval;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs one training job. The episodes are split as evenly as possible
+	 * across the workers, the first ones playing one more if they do not
+	 * divide. Averaging rounds are only held at episode counts every worker
+	 * reaches.
+	 *
+	 * @param episodes
+	 *            Total number of episodes to play
+	 * @param initialWeights
+	 *            Starting weights, or null for random weights
+	 * @return The trained weights. The learning curve is the average of the
+	 *         workers' curves, and the counts are totals over all workers.
+	 */
+	public TrainingResult train(int episodes, double[] initialWeights) throws IOException, InterruptedException {
+		// fewer episodes than threads leaves the extra threads idle
+		int workers = Math.max(1, Math.min(threads, episodes));
+		final int fewestEpisodes = episodes / workers;
+		int longerWorkers = episodes % workers;
+
+		final RLAgent[] agents = new RLAgent[workers];
+		final EpisodeRunner[] runners = new EpisodeRunner[workers];
+		AtomicBoolean rescaling = new AtomicBoolean();
+		for (int i = 0; i < workers; i++) {
+			int workerSeed = nextSeed();
+			int workerEpisodes = fewestEpisodes + (i < longerWorkers ? 1 : 0);
+			agents[i] = new RLAgent(0, workerEpisodes, i == 0 ? initialWeights : agents[0].weights);
+			agents[i].setHeadless(true);
+			// give each worker its own exploration stream
+			agents[i].random.setSeed(workerSeed);
+			if (mode == Mode.HOGWILD) {
+				agents[i].useWeights(agents[0].weights, rescaling);
+			}
+
+			StateCreator map = EpisodeRunner.loadMap(mapFile);
+			Agent enemy = EpisodeRunner.createAgent(enemyAgentClass, RLAgent.ENEMY_PLAYERNUM);
+			runners[i] = new EpisodeRunner(map, new Agent[] { agents[i], enemy }, workerSeed);
+		}
+
+		final CyclicBarrier barrier = mode == Mode.AVERAGING ? new CyclicBarrier(workers, new Runnable() {
+			public void run() {
+				average(agents);
+			}
+		}) : null;
+
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		long start = System.nanoTime();
+		long turns = 0;
+		try {
+			CompletionService<Long> results = new ExecutorCompletionService<Long>(executor);
+			for (int i = 0; i < workers; i++) {
+				final RLAgent agent = agents[i];
+				final EpisodeRunner runner = runners[i];
+				results.submit(new Callable<Long>() {
+					public Long call() throws InterruptedException, BrokenBarrierException {
+						long workerTurns = 0;
+						boolean finished = false;
+						try {
+							while (!agent.isFinished()) {
+								workerTurns += runner.runEpisode();
+								int played = agent.getEpisodesPlayed();
+								if (barrier != null && played % syncInterval == 0 && played <= fewestEpisodes) {
+									barrier.await();
+								}
+							}
+							finished = true;
+						} finally {
+							// release the workers waiting for this one, they
+							// would otherwise wait forever
+							if (!finished && barrier != null) {
+								barrier.reset();
+							}
+						}
+						return workerTurns;
+					}
+				});
+			}
+			Throwable failure = null;
+			for (int i = 0; i < workers; i++) {
+				try {
+					turns += results.take().get();
+				} catch (ExecutionException ex) {
+					if (failure == null) {
+						// a worker still in its episode would reach the reset
+						// barrier later and wait there alone
+						executor.shutdownNow();
+					}
+					// broken barriers and interrupts are the other workers being
+					// released, report what released them
+					if (failure == null || isRelease(failure)) {
+						failure = ex.getCause();
+					}
+				}
+			}
+			if (failure != null) {
+				throw new IllegalStateException("Training worker failed", failure);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		if (mode == Mode.AVERAGING) {
+			average(agents);
+		}
+
+		int gamesWon = 0;
+		int played = 0;
+		List<List<Double>> curves = new ArrayList<List<Double>>();
+		for (RLAgent agent : agents) {
+			gamesWon += agent.getGamesWon();
+			played += agent.getEpisodesPlayed();
+			curves.add(agent.getLearningCurve());
+		}
+		return new TrainingResult(agents[0].weights.clone(), averageCurves(curves), played, gamesWon, turns,
+				elapsed);
+	}
+
+	private static boolean isRelease(Throwable failure) {
+		return failure instanceof BrokenBarrierException || failure instanceof InterruptedException;
+	}
+
+	/**
+	 * Replaces every agent's weights with the element-wise mean. Only called
+	 * while all workers are parked at the barrier or finished.
+	 */
+	private static void average(RLAgent[] agents) {
+		double[] mean = new double[agents[0].weights.length];
+		for (RLAgent agent : agents) {
+			for (int i = 0; i < mean.length; i++) {
+				mean[i] += agent.weights[i];
+			}
+		}
+		for (int i = 0; i < mean.length; i++) {
+			mean[i] /= agents.length;
+		}
+		for (RLAgent agent : agents) {
+			System.arraycopy(mean, 0, agent.weights, 0, mean.length);
+		}
+	}
+
+	private static List<Double> averageCurves(List<List<Double>> curves) {
+		int length = Integer.MAX_VALUE;
+		for (List<Double> curve : curves) {
+			length = Math.min(length, curve.size());
+		}
+		List<Double> mean = new ArrayList<Double>();
+		for (int i = 0; i < length; i++) {
+			double sum = 0;
+			for (List<Double> curve : curves) {
+				sum += curve.get(i);
+			}
+			mean.add(sum / curves.size());
+		}
+		return mean;
+	}
+
+	private synchronized int nextSeed() {
+		return seed++;
+	}
+
+	/**
+	 * Usage: ParallelTrainer mapFile episodes threads [HOGWILD|AVERAGING]
+	 * [syncInterval]
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			System.err.println("Usage: ParallelTrainer mapFile episodes threads [HOGWILD|AVERAGING] [syncInterval]");
+			return;
+		}
+		Mode mode = args.length >= 4 ? Mode.valueOf(args[3].toUpperCase()) : Mode.HOGWILD;
+		int syncInterval = args.length >= 5 ? Integer.parseInt(args[4]) : 10;
+		ParallelTrainer trainer = new ParallelTrainer(args[0], Integer.parseInt(args[2]), mode, syncInterval);
+
+		TrainingResult result = trainer.train(Integer.parseInt(args[1]), null);
+		System.out.println(mode + ": " + result);
+		new RLAgent(0, 0, result.weights).printTestData(result.learningCurve);
+	}
+}
@@ -0,0 +1,134 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * A worker's connection to a ParameterServer. Not thread-safe: each worker
+ * process or thread opens its own.
+ */
+public class ParameterClient implements Closeable {
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private final int count;
+	private final Deflater deflater;
+	private final ByteBuffer raw;
+	private final byte[] payload;
+	private long version;
+	private long bytesSent;
+
+	/**
+	 * @param count
+	 *            Number of weights, which must match the server's
+	 * @param compress
+	 *            true to deflate pushed deltas
+	 * @throws IOException
+	 *             If the server cannot be reached or has a different number
+	 *             of weights
+	 */
+	public ParameterClient(String host, int port, int count, boolean compress) throws IOException {
+		this.socket = new Socket(host, port);
+		this.socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		this.count = count;
+		this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+		this.raw = ByteBuffer.allocate(8 * count);
+		// deflate can grow incompressible input by a few bytes per block
+		this.payload = new byte[8 * count + 64];
+
+		out.writeInt(ParameterServer.MAGIC);
+		out.writeInt(ParameterServer.VERSION);
+		out.writeInt(count);
+		out.flush();
+		int serverCount = in.readInt();
+		if (serverCount != count) {
+			close();
+			throw new IOException("Parameter server at " + host + ":" + port + " rejected " + count + " weights");
+		}
+	}
+
+	/**
+	 * Copies the server's weights into the given array.
+	 */
+	public void pull(double[] weights) throws IOException {
+		out.writeByte(ParameterServer.OP_PULL);
+		out.flush();
+		readWeights(weights);
+	}
+
+	/**
+	 * Sends a delta and receives the server's weights with it applied. The
+	 * result includes every other worker's pushes since this worker's last
+	 * request.
+	 *
+	 * @param delta
+	 *            Change to add to the server's weights
+	 * @param updates
+	 *            Weight updates the delta is made of, for the server's
+	 *            counters
+	 * @param episodes
+	 *            Episodes played since the last push, for the server's
+	 *            counters and checkpoints
+	 * @param weights
+	 *            Receives the new weights. May be the same array as delta.
+	 */
+	public void push(double[] delta, int updates, int episodes, double[] weights) throws IOException {
+		int length = ParameterServer.encode(delta, deflater, raw, payload);
+		out.writeByte(ParameterServer.OP_PUSH);
+		out.writeInt(updates);
+		out.writeInt(episodes);
+		out.writeByte(deflater != null ? ParameterServer.ENCODING_DEFLATE : ParameterServer.ENCODING_RAW);
+		out.writeInt(length);
+		out.write(payload, 0, length);
+		out.flush();
+		bytesSent += length;
+		readWeights(weights);
+	}
+
+	/**
+	 * @return Server version of the weights last received
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return Payload bytes pushed so far, after compression
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public void close() throws IOException {
+		try {
+			if (!socket.isClosed()) {
+				out.writeByte(ParameterServer.OP_CLOSE);
+				out.flush();
+			}
+		} catch (IOException ex) {
+			// the server went away first
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+			socket.close();
+		}
+	}
+
+	private void readWeights(double[] weights) throws IOException {
+		version = in.readLong();
+		for (int i = 0; i < count; i++) {
+			weights[i] = in.readDouble();
+		}
+	}
+}
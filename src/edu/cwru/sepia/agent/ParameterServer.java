@@ -0,0 +1,447 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Holds the weights of a training run spread over several processes. Each
+ * worker process plays its own games with its own RLAgent (see
+ * DistributedWorker) and every few episodes pushes the change in its weights
+ * since its last sync. The server adds the change to its weights, rescales
+ * them to [-1, 1] as RLAgent does after every update, and answers with the
+ * result, which the worker continues from. Pushes from different workers are
+ * applied one at a time in the order they arrive, with no barrier, so a slow
+ * worker never holds up the others.
+ *
+ * A worker's change includes its own rescaling, so the server's weights are
+ * not a plain sum of TD steps. Without the rescale on the server the sum of
+ * several workers' changes would drift out of the range every agent assumes.
+ *
+ * Workers are separate JVMs, so each has its own heap and its own SEPIA
+ * model. The server only ever sees weight vectors.
+ *
+ * Protocol, over TCP, big-endian as written by DataOutputStream:
+ *
+ * The client opens with int MAGIC, int VERSION, int weight count. The server
+ * answers with its weight count, or -1 if the versions or counts differ and
+ * closes the connection. Then any number of requests, each one byte:
+ *
+ * OP_PULL. The server answers with long version, double[count] weights.
+ *
+ * OP_PUSH, int updates, int episodes, byte encoding, int length,
+ * byte[length] payload. The payload is the double[count] delta, deflated if
+ * encoding is ENCODING_DEFLATE. updates and episodes are what the worker did
+ * since its last push and only feed the counters. The answer is the same as
+ * for OP_PULL, with the delta applied.
+ *
+ * OP_CLOSE ends the connection.
+ *
+ * The version goes up by one with every push.
+ *
+ * There is no authentication: anyone who can connect can replace the
+ * weights. main listens on the loopback address unless given another one.
+ */
+public class ParameterServer {
+
+	public static final int MAGIC = 0x514C5053;
+	public static final int VERSION = 1;
+	public static final int DEFAULT_PORT = 7170;
+
+	public static final byte OP_CLOSE = 0;
+	public static final byte OP_PULL = 1;
+	public static final byte OP_PUSH = 2;
+
+	public static final byte ENCODING_RAW = 0;
+	public static final byte ENCODING_DEFLATE = 1;
+
+	private final double[] weights;
+	private long version = 0;
+	private int episodes = 0;
+	private WeightCheckpointer checkpointer;
+
+	private final AtomicLong pushes = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicInteger connections = new AtomicInteger();
+
+	private ServerSocket socket;
+	private ExecutorService handlers;
+
+	/**
+	 * @param weights
+	 *            Initial weights. Copied.
+	 */
+	public ParameterServer(double[] weights) {
+		this.weights = weights.clone();
+	}
+
+	/**
+	 * Checkpoints the weights whenever the pushed episodes or the time since
+	 * the last checkpoint call for one.
+	 */
+	public synchronized void setCheckpointer(WeightCheckpointer checkpointer) {
+		this.checkpointer = checkpointer;
+	}
+
+	/**
+	 * Starts accepting workers on a background thread.
+	 *
+	 * @param address
+	 *            Address to listen on, for example the loopback address when
+	 *            all workers run on this machine. null listens on every
+	 *            interface, which lets any host that can reach this one push
+	 *            weights.
+	 * @param port
+	 *            Port to listen on, or 0 for any free port
+	 */
+	public void start(InetAddress address, int port) throws IOException {
+		socket = new ServerSocket();
+		socket.setReuseAddress(true);
+		socket.bind(new InetSocketAddress(address, port));
+		handlers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "parameter-server-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		handlers.execute(new Runnable() {
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting workers and drops the connected ones.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			System.err.println("Failed to close parameter server socket. Reason: " + ex.getMessage());
+		}
+		handlers.shutdownNow();
+	}
+
+	/**
+	 * @return A copy of the current weights
+	 */
+	public synchronized double[] weights() {
+		return weights.clone();
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized int getEpisodes() {
+		return episodes;
+	}
+
+	public long getPushes() {
+		return pushes.get();
+	}
+
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Adds a worker's delta to the weights and rescales them.
+	 *
+	 * @param out
+	 *            Receives the weights after the delta
+	 * @return The version after the delta
+	 */
+	synchronized long apply(double[] delta, int pushedUpdates, int pushedEpisodes, double[] out) {
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] += delta[i];
+		}
+		RLAgent.normalize(weights);
+		version++;
+		episodes += pushedEpisodes;
+		pushes.incrementAndGet();
+		updates.addAndGet(pushedUpdates);
+		if (checkpointer != null) {
+			checkpointer.onEpisodeEnd(episodes, weights);
+		}
+		System.arraycopy(weights, 0, out, 0, weights.length);
+		return version;
+	}
+
+	synchronized long read(double[] out) {
+		System.arraycopy(weights, 0, out, 0, weights.length);
+		return version;
+	}
+
+	private void accept() {
+		while (!socket.isClosed()) {
+			try {
+				final Socket client = socket.accept();
+				client.setTcpNoDelay(true);
+				handlers.execute(new Runnable() {
+					public void run() {
+						serve(client);
+					}
+				});
+			} catch (SocketException ex) {
+				// closed
+				return;
+			} catch (IOException ex) {
+				System.err.println("Failed to accept worker. Reason: " + ex.getMessage());
+			}
+		}
+	}
+
+	private void serve(Socket client) {
+		connections.incrementAndGet();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+			int magic = in.readInt();
+			int version = in.readInt();
+			int count = in.readInt();
+			if (magic != MAGIC || version != VERSION || count != weights.length) {
+				out.writeInt(-1);
+				out.flush();
+				return;
+			}
+			out.writeInt(weights.length);
+			out.flush();
+
+			double[] delta = new double[weights.length];
+			double[] current = new double[weights.length];
+			byte[] payload = new byte[0];
+			Inflater inflater = new Inflater();
+			try {
+				while (true) {
+					byte op = in.readByte();
+					long served;
+					if (op == OP_PULL) {
+						served = read(current);
+					} else if (op == OP_PUSH) {
+						int pushedUpdates = in.readInt();
+						int pushedEpisodes = in.readInt();
+						byte encoding = in.readByte();
+						int length = in.readInt();
+						if (length < 0 || length > 16 * weights.length + 64) {
+							throw new IOException("Bad payload length " + length);
+						}
+						if (payload.length < length) {
+							payload = new byte[length];
+						}
+						in.readFully(payload, 0, length);
+						bytesReceived.addAndGet(length);
+						decode(payload, length, encoding, inflater, delta);
+						served = apply(delta, pushedUpdates, pushedEpisodes, current);
+					} else if (op == OP_CLOSE) {
+						return;
+					} else {
+						throw new IOException("Unknown request " + op);
+					}
+					out.writeLong(served);
+					for (double weight : current) {
+						out.writeDouble(weight);
+					}
+					out.flush();
+				}
+			} finally {
+				inflater.end();
+			}
+		} catch (IOException ex) {
+			if (!socket.isClosed()) {
+				System.err.println("Dropped worker " + client.getRemoteSocketAddress() + ". Reason: " + ex.getMessage());
+			}
+		} finally {
+			connections.decrementAndGet();
+			try {
+				client.close();
+			} catch (IOException ex) {
+				// nothing left to do with it
+			}
+		}
+	}
+
+	/**
+	 * Encodes a delta as an OP_PUSH payload.
+	 *
+	 * @param deflater
+	 *            Deflater to compress with, or null to send the doubles as
+	 *            they are
+	 * @return Number of bytes of buffer used
+	 */
+	static int encode(double[] delta, Deflater deflater, ByteBuffer raw, byte[] buffer) {
+		raw.clear();
+		for (double value : delta) {
+			raw.putDouble(value);
+		}
+		if (deflater == null) {
+			System.arraycopy(raw.array(), 0, buffer, 0, raw.position());
+			return raw.position();
+		}
+		deflater.reset();
+		deflater.setInput(raw.array(), 0, raw.position());
+		deflater.finish();
+		int length = 0;
+		while (!deflater.finished()) {
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+		return length;
+	}
+
+	private static void decode(byte[] payload, int length, byte encoding, Inflater inflater, double[] delta)
+			throws IOException {
+		ByteBuffer raw;
+		if (encoding == ENCODING_RAW) {
+			raw = ByteBuffer.wrap(payload, 0, length);
+		} else if (encoding == ENCODING_DEFLATE) {
+			byte[] inflated = new byte[8 * delta.length];
+			inflater.reset();
+			inflater.setInput(payload, 0, length);
+			try {
+				if (inflater.inflate(inflated) != inflated.length || !inflater.finished()) {
+					throw new IOException("Compressed delta has the wrong size");
+				}
+			} catch (DataFormatException ex) {
+				throw new IOException("Corrupt compressed delta. Reason: " + ex.getMessage());
+			}
+			raw = ByteBuffer.wrap(inflated);
+		} else {
+			throw new IOException("Unknown encoding " + encoding);
+		}
+		if (raw.remaining() != 8 * delta.length) {
+			throw new IOException("Delta has " + raw.remaining() + " bytes, expected " + 8 * delta.length);
+		}
+		for (int i = 0; i < delta.length; i++) {
+			delta[i] = raw.getDouble();
+		}
+	}
+
+	/**
+	 * Starts DistributedWorker processes with this JVM's java and classpath,
+	 * all connecting to the address this server listens on, or the loopback
+	 * address if it listens on every interface.
+	 *
+	 * @param workerArgs
+	 *            Arguments after host and port, the same for every worker
+	 *            except the seed, which is appended as the worker's index
+	 * @return The processes, with their output going to this process's
+	 */
+	public List<Process> launchLocalWorkers(int count, String... workerArgs) throws IOException {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		InetAddress bound = socket.getInetAddress();
+		String host = (bound.isAnyLocalAddress() ? InetAddress.getLoopbackAddress() : bound).getHostAddress();
+		List<Process> workers = new ArrayList<Process>();
+		for (int i = 0; i < count; i++) {
+			List<String> command = new ArrayList<String>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(DistributedWorker.class.getName());
+			command.add(host);
+			command.add(Integer.toString(getPort()));
+			for (String arg : workerArgs) {
+				command.add(arg);
+			}
+			command.add(Integer.toString(i));
+			workers.add(new ProcessBuilder(command).inheritIO().start());
+		}
+		return workers;
+	}
+
+	/**
+	 * Usage: ParameterServer [[address:]port] [weightsFile] [workers mapFile
+	 * episodesPerWorker [syncEpisodes] [compress]]
+	 *
+	 * Without workers the server runs until killed, checkpointing to
+	 * RLAgent.CHECKPOINT_FILE. With them it starts that many local
+	 * DistributedWorker processes, waits for them, writes the final
+	 * checkpoint and exits. weightsFile may be "none" for random weights.
+	 *
+	 * The server listens on the loopback address unless an address is given,
+	 * for example 0.0.0.0:7170 for workers on other machines. Only do that on
+	 * a network you trust.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		InetAddress address = InetAddress.getLoopbackAddress();
+		int port = DEFAULT_PORT;
+		if (args.length >= 1) {
+			int colon = args[0].lastIndexOf(':');
+			if (colon >= 0) {
+				address = InetAddress.getByName(args[0].substring(0, colon));
+			}
+			port = Integer.parseInt(args[0].substring(colon + 1));
+		}
+		double[] initial = args.length >= 2 && !args[1].equalsIgnoreCase("none")
+				? RLAgent.readWeights(new File(args[1])) : new RLAgent(0, 0, null).weights;
+		ParameterServer server = new ParameterServer(initial);
+		server.setCheckpointer(new WeightCheckpointer(new File(RLAgent.CHECKPOINT_FILE),
+				RLAgent.DEFAULT_CHECKPOINT_EPISODES, RLAgent.CHECKPOINT_SECONDS));
+		boolean local = args.length >= 5;
+		server.start(address, port);
+		System.out.println("Parameter server listening on " + address.getHostAddress() + " port " + server.getPort());
+
+		if (!local) {
+			Thread.currentThread().join();
+			return;
+		}
+
+		int workers = Integer.parseInt(args[2]);
+		List<String> workerArgs = new ArrayList<String>();
+		for (int i = 3; i < Math.min(args.length, 7); i++) {
+			workerArgs.add(args[i]);
+		}
+		while (workerArgs.size() < 4) {
+			workerArgs.add(workerArgs.size() == 2 ? Integer.toString(DistributedWorker.DEFAULT_SYNC_EPISODES) : "false");
+		}
+		long start = System.nanoTime();
+		int failed = 0;
+		for (Process worker : server.launchLocalWorkers(workers, workerArgs.toArray(new String[workerArgs.size()]))) {
+			if (worker.waitFor() != 0) {
+				failed++;
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		server.close();
+
+		WeightCheckpointer.write(new File(RLAgent.CHECKPOINT_FILE), server.getEpisodes(), server.weights());
+		System.out.println(String.format("%d workers (%d failed), %d episodes, %d pushes, %d updates, %d KB received,"
+				+ " %.1f episodes/s", workers, failed, server.getEpisodes(), server.getPushes(), server.getUpdates(),
+				server.getBytesReceived() / 1024, server.getEpisodes() / seconds));
+	}
+}
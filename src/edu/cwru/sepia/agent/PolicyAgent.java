@@ -0,0 +1,112 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+/**
+ * Plays greedily with the policy of a PolicyServer. It does not learn,
+ * explore or write any files. Its only per-game state is the battlefield,
+ * its features and a Q-matrix. The weights, their parsing and the JIT-compiled scoring code
+ * are shared with every other game using the same server.
+ *
+ * New orders are given on the same events RLAgent reacts to: the first turn,
+ * a death, or damage to one of our footmen. Footmen whose attack completed
+ * are given new orders every turn.
+ */
+public class PolicyAgent extends Agent {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String DEFAULT_WEIGHTS_FILE = "agent_weights/weights.txt";
+
+	private final PolicyServer server;
+	private final Battlefield battlefield;
+	private final QMatrix qMatrix = new QMatrix();
+	private int gamesWon = 0;
+
+	/**
+	 * Constructor used by SEPIA configs. Agents naming the same weights file
+	 * share one PolicyServer.
+	 *
+	 * @param args
+	 *            Optional weights file, DEFAULT_WEIGHTS_FILE if missing, and
+	 *            true if the weights go with DistanceFields.WITH_PATH_FEATURES
+	 */
+	public PolicyAgent(int playernum, String[] args) {
+		super(playernum);
+		String weightsFile = args.length >= 1 ? args[0] : DEFAULT_WEIGHTS_FILE;
+		boolean pathFeatures = args.length >= 2 && Boolean.parseBoolean(args[1]);
+		try {
+			this.server = PolicyServer.shared(weightsFile,
+					pathFeatures ? DistanceFields.WITH_PATH_FEATURES : FeatureExtractor.STANDARD);
+		} catch (IOException ex) {
+			throw new IllegalStateException("Failed to load weights from " + weightsFile, ex);
+		}
+		this.battlefield = new Battlefield(playernum, RLAgent.ENEMY_PLAYERNUM);
+		this.qMatrix.setFeatureExtractor(this.server.getFeatureFactory().create(this.battlefield));
+	}
+
+	public PolicyAgent(int playernum, PolicyServer server) {
+		super(playernum);
+		this.server = server;
+		this.battlefield = new Battlefield(playernum, RLAgent.ENEMY_PLAYERNUM);
+		this.qMatrix.setFeatureExtractor(server.getFeatureFactory().create(this.battlefield));
+	}
+
+	@Override
+	public Map<Integer, Action> initialStep(State.StateView stateView, History.HistoryView historyView) {
+		battlefield.start(stateView);
+		qMatrix.clear();
+		return middleStep(stateView, historyView);
+	}
+
+	@Override
+	public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+		boolean event = battlefield.update(stateView, historyView);
+		UnitSet attackers = event ? battlefield.myFootmen() : battlefield.digest().completed();
+
+		Map<Integer, Action> actions = new HashMap<Integer, Action>();
+		if (attackers.isEmpty() || battlefield.enemyFootmen().isEmpty()) {
+			return actions;
+		}
+
+		server.snapshot().evaluate(qMatrix, battlefield, attackers);
+		server.recordDecision();
+		for (int row = 0; row < qMatrix.attackerCount(); row++) {
+			int footman = qMatrix.attackerId(row);
+			actions.put(footman, Action.createCompoundAttack(footman, qMatrix.bestDefender(row)));
+		}
+		return actions;
+	}
+
+	@Override
+	public void terminalStep(State.StateView stateView, History.HistoryView historyView) {
+		battlefield.update(stateView, historyView);
+		boolean won = !battlefield.myFootmen().isEmpty();
+		if (won) {
+			gamesWon++;
+		}
+		server.recordGame(won);
+	}
+
+	public int getGamesWon() {
+		return gamesWon;
+	}
+
+	@Override
+	public void savePlayerData(OutputStream outputStream) {
+
+	}
+
+	@Override
+	public void loadPlayerData(InputStream inputStream) {
+
+	}
+}
@@ -0,0 +1,249 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Serves a greedy policy to any number of concurrent games from one loaded
+ * weight vector. Games read the current PolicySnapshot through an
+ * AtomicReference, so publishing new weights with swap is one atomic write:
+ * games already deciding finish with the snapshot they started with and pick
+ * up the new one on their next decision, without ever waiting.
+ *
+ * PolicyAgent is the Agent that plays with a server's policy. play runs many
+ * evaluation games on a small pool of threads, each thread reusing one map,
+ * model and pair of agents for all of its games.
+ *
+ * A policy is weights and the features they go with. Every game builds its
+ * own features with the server's factory, and weights of the wrong length
+ * are refused when they are loaded or swapped in.
+ */
+public class PolicyServer {
+
+	private static final ConcurrentMap<String, PolicyServer> SHARED = new ConcurrentHashMap<String, PolicyServer>();
+
+	private final FeatureExtractor.Factory features;
+	private final int numFeatures;
+	private final AtomicReference<PolicySnapshot> current;
+	private final AtomicLong decisions = new AtomicLong();
+	private final AtomicLong gamesPlayed = new AtomicLong();
+	private final AtomicLong gamesWon = new AtomicLong();
+
+	/**
+	 * @param weights
+	 *            Initial weights. Copied.
+	 * @param features
+	 *            Features the weights go with
+	 * @throws IllegalArgumentException
+	 *             If there is not one weight per feature
+	 */
+	public PolicyServer(double[] weights, FeatureExtractor.Factory features) {
+		this.features = features;
+		this.numFeatures = FeatureExtractor.sizeOf(features);
+		this.current = new AtomicReference<PolicySnapshot>(new PolicySnapshot(checkLength(weights), 0));
+	}
+
+	public PolicyServer(double[] weights) {
+		this(weights, FeatureExtractor.STANDARD);
+	}
+
+	/**
+	 * @param weightsFile
+	 *            Weights in the text or checkpoint format
+	 */
+	public static PolicyServer load(File weightsFile, FeatureExtractor.Factory features) throws IOException {
+		return new PolicyServer(RLAgent.readWeights(weightsFile), features);
+	}
+
+	public static PolicyServer load(File weightsFile) throws IOException {
+		return load(weightsFile, FeatureExtractor.STANDARD);
+	}
+
+	/**
+	 * Returns the server for a weights file, loading it the first time it is
+	 * asked for. Every PolicyAgent created from a SEPIA config with the same
+	 * path shares one server, so they must all ask for the same features.
+	 */
+	public static PolicyServer shared(String weightsFile, FeatureExtractor.Factory features) throws IOException {
+		PolicyServer server = SHARED.get(weightsFile);
+		if (server == null) {
+			server = load(new File(weightsFile), features);
+			PolicyServer raced = SHARED.putIfAbsent(weightsFile, server);
+			if (raced != null) {
+				server = raced;
+			}
+		}
+		if (server.features != features) {
+			throw new IllegalStateException(weightsFile + " is already served with other features");
+		}
+		return server;
+	}
+
+	/**
+	 * @return Builds the features every game of this policy scores with
+	 */
+	public FeatureExtractor.Factory getFeatureFactory() {
+		return features;
+	}
+
+	private double[] checkLength(double[] weights) {
+		if (weights.length != numFeatures) {
+			throw new IllegalArgumentException("Got " + weights.length + " weights for " + numFeatures + " features");
+		}
+		return weights;
+	}
+
+	/**
+	 * @return The weights games should use for their next decision
+	 */
+	public PolicySnapshot snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * Publishes new weights. Never blocks games.
+	 *
+	 * @param weights
+	 *            New weights, one per feature. Copied.
+	 * @return The published snapshot
+	 */
+	public PolicySnapshot swap(double[] weights) {
+		checkLength(weights);
+		while (true) {
+			PolicySnapshot old = current.get();
+			PolicySnapshot next = new PolicySnapshot(weights, old.getVersion() + 1);
+			if (current.compareAndSet(old, next)) {
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Publishes the weights in a file.
+	 */
+	public PolicySnapshot reload(File weightsFile) throws IOException {
+		return swap(RLAgent.readWeights(weightsFile));
+	}
+
+	void recordDecision() {
+		decisions.incrementAndGet();
+	}
+
+	void recordGame(boolean won) {
+		gamesPlayed.incrementAndGet();
+		if (won) {
+			gamesWon.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return Number of times any game asked for targets
+	 */
+	public long getDecisions() {
+		return decisions.get();
+	}
+
+	public long getGamesPlayed() {
+		return gamesPlayed.get();
+	}
+
+	public long getGamesWon() {
+		return gamesWon.get();
+	}
+
+	/**
+	 * Plays evaluation games with this server's policy.
+	 *
+	 * @param mapFile
+	 *            SEPIA state XML to play on
+	 * @param enemyAgentClass
+	 *            Agent class controlling the enemy player
+	 * @param games
+	 *            Number of games to play
+	 * @param threads
+	 *            Number of games to run at once
+	 * @param seed
+	 *            Seed of the first thread's model. Each thread after that
+	 *            uses the next seed.
+	 * @return Number of games won
+	 */
+	public int play(final String mapFile, final String enemyAgentClass, final int games, int threads,
+			final int seed) throws IOException, InterruptedException {
+		final AtomicInteger nextGame = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "policy-game-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<Integer>> workers = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < threads; i++) {
+				final int workerSeed = seed + i;
+				workers.add(executor.submit(new Callable<Integer>() {
+					public Integer call() throws IOException {
+						StateCreator map = EpisodeRunner.loadMap(mapFile);
+						PolicyAgent agent = new PolicyAgent(0, PolicyServer.this);
+						Agent enemy = EpisodeRunner.createAgent(enemyAgentClass, RLAgent.ENEMY_PLAYERNUM);
+						EpisodeRunner runner = new EpisodeRunner(map, new Agent[] { agent, enemy }, workerSeed);
+						while (nextGame.getAndIncrement() < games) {
+							runner.runEpisode();
+						}
+						return agent.getGamesWon();
+					}
+				}));
+			}
+			int won = 0;
+			for (Future<Integer> worker : workers) {
+				won += worker.get();
+			}
+			return won;
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("Evaluation game failed", ex.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Usage: PolicyServer mapFile weightsFile games [threads] [pathFeatures]
+	 *
+	 * pathFeatures true serves weights trained with
+	 * DistanceFields.WITH_PATH_FEATURES.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 3) {
+			System.err.println("Usage: PolicyServer mapFile weightsFile games [threads] [pathFeatures]");
+			return;
+		}
+		boolean pathFeatures = args.length >= 5 && Boolean.parseBoolean(args[4]);
+		PolicyServer server = load(new File(args[1]),
+				pathFeatures ? DistanceFields.WITH_PATH_FEATURES : FeatureExtractor.STANDARD);
+		int games = Integer.parseInt(args[2]);
+		int threads = args.length >= 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		long start = System.nanoTime();
+		int won = server.play(args[0], TrainingRunner.DEFAULT_ENEMY_AGENT, games, threads, 0);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d games, %d won, %d decisions, %.1f games/s", games, won,
+				server.getDecisions(), games / seconds));
+	}
+}
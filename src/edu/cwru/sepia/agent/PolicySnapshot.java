@@ -0,0 +1,44 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * One immutable version of the Q-function weights. Any number of games can
+ * evaluate the same snapshot at once, and a game that holds on to one keeps
+ * a consistent policy even while a newer snapshot is being published.
+ */
+public final class PolicySnapshot {
+
+	private final double[] weights;
+	private final long version;
+
+	/**
+	 * @param weights
+	 *            Weights of the Q-function. Copied.
+	 * @param version
+	 *            Number identifying this snapshot, increasing with every swap
+	 */
+	public PolicySnapshot(double[] weights, long version) {
+		this.weights = weights.clone();
+		this.version = version;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return A copy of the weights
+	 */
+	public double[] getWeights() {
+		return weights.clone();
+	}
+
+	/**
+	 * Scores the given attackers against every living enemy on the
+	 * battlefield. The matrix must belong to the calling game.
+	 */
+	public void evaluate(QMatrix matrix, Battlefield battlefield, UnitSet attackers) {
+		// QMatrix only reads the weights, so the internal array is safe to share
+		matrix.evaluate(attackers, battlefield.enemyFootmen(), battlefield.units(), battlefield.grid(),
+				battlefield.getEnemyPlayernum(), weights);
+	}
+}
@@ -0,0 +1,539 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Q-values of every (attacker, defender) pair, kept from one decision to the
+ * next and only recomputed where something changed.
+ *
+ * The features of RLAgent.calculateFeatureVector split into terms that depend
+ * only on the attacker (the constant and attacker HP), terms that depend only
+ * on the defender (defender HP and the enemies around it) and terms that
+ * depend on the pair (HP ratio and adjacency). Every unit gets a fixed slot
+ * the first time it is seen, and the matrix remembers the HP, position and
+ * defender term each row and column was last computed with. On each evaluate:
+ *
+ * - a row whose attacker changed HP or position is recomputed in full,
+ *
+ * - in other rows only the entries of defenders that changed since the row
+ * was last brought up to date are recomputed, and the row's best defender is
+ * updated from them, rescanning the row only if the old best got worse or
+ * died,
+ *
+ * - any change to the weights recomputes everything.
+ *
+ * Rows and columns of one evaluate call are numbered in the order of the
+ * given sets, as before.
+ *
+ * evaluate is prepare followed by refresh of every row. A caller with a time
+ * budget can call prepare and refresh only the rows it has time for. A row
+ * that is not refreshed keeps what it knew and catches up the next time it
+ * is.
+ *
+ * The above is written out by hand for FeatureExtractor.standard(). With any
+ * other extractor the attacker terms are computed once per row, the defender
+ * terms once per column and only the pair terms per entry, through the
+ * extractor. What its features read is unknown, so then every row is
+ * recomputed on every evaluate.
+ */
+public class QMatrix {
+
+	private double[] cachedWeights = new double[RLAgent.NUM_FEATURES];
+	private boolean weightsKnown;
+	/**
+	 * Extractor of the generic path, null for the standard features.
+	 */
+	private FeatureExtractor features;
+	private UnitTable units;
+	private OccupancyGrid grid;
+	private int clock;
+
+	// attacker slots
+	private int[] attackerSlotOf = new int[0];
+	private int attackerSlots;
+	private int[] attackerIds = new int[0];
+	private int[] attackerHP = new int[0];
+	private int[] attackerX = new int[0];
+	private int[] attackerY = new int[0];
+	private double[] attackerTerm = new double[0];
+	private boolean[] rowValid = new boolean[0];
+	private int[] rowSeen = new int[0];
+	private int[] best = new int[0];
+	private double[] bestQ = new double[0];
+
+	// defender slots
+	private int[] defenderSlotOf = new int[0];
+	private int defenderSlots;
+	private int[] defenderIds = new int[0];
+	private int[] defenderHP = new int[0];
+	private int[] defenderX = new int[0];
+	private int[] defenderY = new int[0];
+	private double[] defenderTerm = new double[0];
+	private boolean[] live = new boolean[0];
+	private int[] columnChanged = new int[0];
+	private int[] columnOf = new int[0];
+	private int lastColumnChange;
+	/**
+	 * Defender slots that changed in this call.
+	 */
+	private int[] changed = new int[0];
+	private int changedCount;
+
+	/**
+	 * q[attackerSlot * stride + defenderSlot]
+	 */
+	private double[] q = new double[0];
+	private int stride;
+
+	// this call's rows and columns
+	private int[] rows = new int[0];
+	private int rowCount;
+	private int[] columns = new int[0];
+	private int columnCount;
+
+	private double w0, w1, w2, w3, w4, w5;
+
+	/**
+	 * Sets the features the weights go with. Every row is recomputed on the
+	 * next evaluate.
+	 */
+	public void setFeatureExtractor(FeatureExtractor features) {
+		this.features = features.isStandard() ? null : features;
+		this.cachedWeights = new double[features.size()];
+		this.weightsKnown = false;
+	}
+
+	/**
+	 * Brings the rows of the given attackers up to date and finds each one's
+	 * best defender.
+	 *
+	 * @param attackerSet
+	 *            My footmen to score
+	 * @param defenderSet
+	 *            Enemy footmen they could attack
+	 * @param units
+	 *            Current HP and location of every unit
+	 * @param grid
+	 *            Occupancy of the enemy footmen, for the surround count
+	 * @param enemyPlayer
+	 *            Player number of the defenders on the grid
+	 * @param weights
+	 *            Q-function weights
+	 */
+	public void evaluate(UnitSet attackerSet, UnitSet defenderSet, UnitTable units, OccupancyGrid grid,
+			int enemyPlayer, double[] weights) {
+		prepare(attackerSet, defenderSet, units, grid, enemyPlayer, weights);
+		for (int r = 0; r < rowCount; r++) {
+			refresh(r);
+		}
+	}
+
+	/**
+	 * The first half of evaluate: takes in the defenders, the weights and
+	 * each attacker's HP and position, but leaves the rows as they are. Takes
+	 * the same arguments as evaluate.
+	 */
+	public void prepare(UnitSet attackerSet, UnitSet defenderSet, UnitTable units, OccupancyGrid grid,
+			int enemyPlayer, double[] weights) {
+		if (weights.length != cachedWeights.length) {
+			throw new IllegalArgumentException(
+					"Got " + weights.length + " weights for " + cachedWeights.length + " features");
+		}
+		clock++;
+		if (!weightsKnown || !Arrays.equals(cachedWeights, weights)) {
+			System.arraycopy(weights, 0, cachedWeights, 0, cachedWeights.length);
+			weightsKnown = true;
+			invalidate();
+		}
+		if (features == null) {
+			w0 = weights[0];
+			w1 = weights[1];
+			w2 = weights[2];
+			w3 = weights[3];
+			w4 = weights[4];
+			w5 = weights[5];
+		} else {
+			this.units = units;
+			this.grid = grid;
+			invalidate();
+		}
+
+		updateColumns(defenderSet, units, grid, enemyPlayer);
+
+		rowCount = attackerSet.size();
+		if (rows.length < rowCount) {
+			rows = new int[Math.max(rowCount, rows.length * 2)];
+		}
+		for (int r = 0; r < rowCount; r++) {
+			int id = attackerSet.get(r);
+			int slot = attackerSlot(id);
+			rows[r] = slot;
+
+			int hp = units.hp(id);
+			int x = units.x(id);
+			int y = units.y(id);
+			if (hp != attackerHP[slot] || x != attackerX[slot] || y != attackerY[slot]) {
+				attackerHP[slot] = hp;
+				attackerX[slot] = x;
+				attackerY[slot] = y;
+				rowValid[slot] = false;
+			}
+			if (!rowValid[slot]) {
+				// the generic row computation reads it from here
+				attackerTerm[slot] = features == null ? w0 + w1 * hp
+						: features.attackerTerm(units, grid, id, cachedWeights);
+			}
+		}
+	}
+
+	/**
+	 * Brings one row of the last prepare up to date and finds its best
+	 * defender.
+	 */
+	public void refresh(int row) {
+		int slot = rows[row];
+		if (!rowValid[slot]) {
+			computeRow(slot);
+		} else if (rowSeen[slot] < lastColumnChange) {
+			updateRow(slot);
+		}
+		rowSeen[slot] = clock;
+	}
+
+	/**
+	 * Forgets every cached value, for example when the weights were changed
+	 * in a way evaluate cannot see.
+	 */
+	public void invalidate() {
+		Arrays.fill(rowValid, false);
+	}
+
+	/**
+	 * Forgets every unit, for the start of a new episode where unit IDs may be
+	 * reused.
+	 */
+	public void clear() {
+		for (int slot = 0; slot < attackerSlots; slot++) {
+			attackerSlotOf[attackerIds[slot]] = -1;
+		}
+		for (int slot = 0; slot < defenderSlots; slot++) {
+			defenderSlotOf[defenderIds[slot]] = -1;
+		}
+		attackerSlots = 0;
+		defenderSlots = 0;
+		rowCount = 0;
+		columnCount = 0;
+	}
+
+	public int attackerCount() {
+		return rowCount;
+	}
+
+	public int defenderCount() {
+		return columnCount;
+	}
+
+	public int attackerId(int row) {
+		return attackerIds[rows[row]];
+	}
+
+	public int defenderId(int column) {
+		return defenderIds[columns[column]];
+	}
+
+	/**
+	 * @return Q-value of the attacker in the given row attacking the defender
+	 *         in the given column
+	 */
+	public double q(int row, int column) {
+		return q[rows[row] * stride + columns[column]];
+	}
+
+	/**
+	 * @return Column of the highest Q-value in the row. Ties go to the
+	 *         defender seen first.
+	 */
+	public int bestColumn(int row) {
+		return columnOf[best[rows[row]]];
+	}
+
+	/**
+	 * @return Defender ID with the highest Q-value for the attacker in the row
+	 */
+	public int bestDefender(int row) {
+		return defenderIds[best[rows[row]]];
+	}
+
+	/**
+	 * @return Highest Q-value in the row
+	 */
+	public double bestQ(int row) {
+		return bestQ[rows[row]];
+	}
+
+	/**
+	 * Refreshes the defender side: slots, terms, liveness and the clock of
+	 * the last change to each column.
+	 */
+	private void updateColumns(UnitSet defenderSet, UnitTable units, OccupancyGrid grid, int enemyPlayer) {
+		int previousCount = columnCount;
+		columnCount = defenderSet.size();
+		if (columns.length < Math.max(columnCount, previousCount)) {
+			columns = Arrays.copyOf(columns, Math.max(Math.max(columnCount, previousCount), columns.length * 2));
+		}
+
+		changedCount = 0;
+
+		// columns of the last call that are gone now died
+		for (int c = 0; c < previousCount; c++) {
+			int slot = columns[c];
+			if (!defenderSet.contains(defenderIds[slot])) {
+				live[slot] = false;
+				markChanged(slot);
+			}
+		}
+
+		for (int c = 0; c < columnCount; c++) {
+			int id = defenderSet.get(c);
+			int slot = defenderSlot(id);
+			columns[c] = slot;
+			columnOf[slot] = c;
+
+			int hp = units.hp(id);
+			int x = units.x(id);
+			int y = units.y(id);
+			double term = features == null ? w2 * hp + w5 * grid.countAdjacent(enemyPlayer, x, y)
+					: features.defenderTerm(units, grid, id, cachedWeights);
+			if (!live[slot] || hp != defenderHP[slot] || x != defenderX[slot] || y != defenderY[slot]
+					|| term != defenderTerm[slot]) {
+				live[slot] = true;
+				defenderHP[slot] = hp;
+				defenderX[slot] = x;
+				defenderY[slot] = y;
+				defenderTerm[slot] = term;
+				markChanged(slot);
+			}
+		}
+	}
+
+	private void markChanged(int slot) {
+		columnChanged[slot] = clock;
+		lastColumnChange = clock;
+		if (changedCount == changed.length) {
+			changed = Arrays.copyOf(changed, Math.max(16, changedCount * 2));
+		}
+		changed[changedCount++] = slot;
+	}
+
+	/**
+	 * Recomputes the whole row. Runs over every defender slot, dead ones
+	 * included, so the loop reads contiguous arrays. Dead slots are skipped
+	 * when picking the best.
+	 */
+	private void computeRow(int slot) {
+		if (features != null) {
+			computeRowGeneric(slot);
+			return;
+		}
+		int hp = attackerHP[slot];
+		int x = attackerX[slot];
+		int y = attackerY[slot];
+		double base = w0 + w1 * hp;
+		attackerTerm[slot] = base;
+		double adjacentValue = 0.5 * w4;
+		int row = slot * stride;
+
+		if (hp == 0) {
+			for (int e = 0; e < defenderSlots; e++) {
+				boolean adjacent = Math.abs(x - defenderX[e]) <= 1 && Math.abs(y - defenderY[e]) <= 1;
+				q[row + e] = base + defenderTerm[e] + w3 * (defenderHP[e] / .5d) + (adjacent ? adjacentValue : 0);
+			}
+		} else {
+			// RLAgent uses integer division for the HP ratio. For
+			// non-negative d, floor((d + 0.5) / hp) equals d / hp, and
+			// multiplying by the reciprocal keeps the division out of the
+			// inner loop.
+			double inverse = 1.0 / hp;
+			for (int e = 0; e < defenderSlots; e++) {
+				boolean adjacent = Math.abs(x - defenderX[e]) <= 1 && Math.abs(y - defenderY[e]) <= 1;
+				double ratio = (int) ((defenderHP[e] + 0.5) * inverse);
+				q[row + e] = base + defenderTerm[e] + w3 * ratio + (adjacent ? adjacentValue : 0);
+			}
+		}
+
+		findBest(slot);
+		// with no defenders there is nothing to keep
+		rowValid[slot] = best[slot] >= 0;
+	}
+
+	/**
+	 * computeRow through the extractor, with the attacker term prepare
+	 * computed. Dead slots are left as they are.
+	 */
+	private void computeRowGeneric(int slot) {
+		int attacker = attackerIds[slot];
+		int row = slot * stride;
+		for (int e = 0; e < defenderSlots; e++) {
+			if (live[e]) {
+				q[row + e] = attackerTerm[slot] + defenderTerm[e]
+						+ features.pairTerm(units, grid, attacker, defenderIds[e], cachedWeights);
+			}
+		}
+		findBest(slot);
+		rowValid[slot] = best[slot] >= 0;
+	}
+
+	/**
+	 * Recomputes the entries of columns that changed since the row was last
+	 * seen and moves its best defender accordingly.
+	 */
+	private void updateRow(int slot) {
+		int seen = rowSeen[slot];
+		int oldBest = best[slot];
+		boolean rescan = !live[oldBest];
+
+		if (seen == clock - 1) {
+			// seen on the last call, so only this call's changes are new
+			for (int i = 0; i < changedCount; i++) {
+				rescan |= updateEntry(slot, changed[i], oldBest);
+			}
+		} else {
+			for (int e = 0; e < defenderSlots; e++) {
+				if (columnChanged[e] > seen) {
+					rescan |= updateEntry(slot, e, oldBest);
+				}
+			}
+		}
+
+		if (rescan) {
+			findBest(slot);
+		}
+	}
+
+	/**
+	 * Recomputes one entry of a valid row and raises the row's best if it
+	 * beats it.
+	 *
+	 * @return true if the entry was the row's best and got worse, so the row
+	 *         needs a rescan
+	 */
+	private boolean updateEntry(int slot, int defender, int oldBest) {
+		if (!live[defender]) {
+			return false;
+		}
+		double value = pair(slot, defender);
+		q[slot * stride + defender] = value;
+		if (defender == oldBest && value < bestQ[slot]) {
+			return true;
+		}
+		if (value > bestQ[slot]) {
+			best[slot] = defender;
+			bestQ[slot] = value;
+		}
+		return false;
+	}
+
+	private void findBest(int slot) {
+		int row = slot * stride;
+		int bestSlot = -1;
+		double bestValue = Double.NEGATIVE_INFINITY;
+		for (int e = 0; e < defenderSlots; e++) {
+			if (live[e] && q[row + e] > bestValue) {
+				bestValue = q[row + e];
+				bestSlot = e;
+			}
+		}
+		best[slot] = bestSlot;
+		bestQ[slot] = bestValue;
+	}
+
+	/**
+	 * One entry, computed exactly as computeRow does.
+	 */
+	private double pair(int attacker, int defender) {
+		if (features != null) {
+			return attackerTerm[attacker] + defenderTerm[defender]
+					+ features.pairTerm(units, grid, attackerIds[attacker], defenderIds[defender], cachedWeights);
+		}
+		int hp = attackerHP[attacker];
+		double ratio;
+		if (hp == 0) {
+			ratio = defenderHP[defender] / .5d;
+		} else {
+			ratio = (int) ((defenderHP[defender] + 0.5) * (1.0 / hp));
+		}
+		boolean adjacent = Math.abs(attackerX[attacker] - defenderX[defender]) <= 1
+				&& Math.abs(attackerY[attacker] - defenderY[defender]) <= 1;
+		return attackerTerm[attacker] + defenderTerm[defender] + w3 * ratio + (adjacent ? 0.5 * w4 : 0);
+	}
+
+	private int attackerSlot(int id) {
+		if (id >= attackerSlotOf.length) {
+			int oldLength = attackerSlotOf.length;
+			attackerSlotOf = Arrays.copyOf(attackerSlotOf, Math.max(id + 1, oldLength * 2));
+			Arrays.fill(attackerSlotOf, oldLength, attackerSlotOf.length, -1);
+		}
+		int slot = attackerSlotOf[id];
+		if (slot >= 0) {
+			return slot;
+		}
+
+		slot = attackerSlots++;
+		if (slot == attackerIds.length) {
+			int capacity = Math.max(16, slot * 2);
+			attackerIds = Arrays.copyOf(attackerIds, capacity);
+			attackerHP = Arrays.copyOf(attackerHP, capacity);
+			attackerX = Arrays.copyOf(attackerX, capacity);
+			attackerY = Arrays.copyOf(attackerY, capacity);
+			attackerTerm = Arrays.copyOf(attackerTerm, capacity);
+			rowValid = Arrays.copyOf(rowValid, capacity);
+			rowSeen = Arrays.copyOf(rowSeen, capacity);
+			best = Arrays.copyOf(best, capacity);
+			bestQ = Arrays.copyOf(bestQ, capacity);
+			q = Arrays.copyOf(q, capacity * stride);
+		}
+		attackerSlotOf[id] = slot;
+		attackerIds[slot] = id;
+		rowValid[slot] = false;
+		return slot;
+	}
+
+	private int defenderSlot(int id) {
+		if (id >= defenderSlotOf.length) {
+			int oldLength = defenderSlotOf.length;
+			defenderSlotOf = Arrays.copyOf(defenderSlotOf, Math.max(id + 1, oldLength * 2));
+			Arrays.fill(defenderSlotOf, oldLength, defenderSlotOf.length, -1);
+		}
+		int slot = defenderSlotOf[id];
+		if (slot >= 0) {
+			return slot;
+		}
+
+		slot = defenderSlots++;
+		if (slot == defenderIds.length) {
+			int capacity = Math.max(16, slot * 2);
+			defenderIds = Arrays.copyOf(defenderIds, capacity);
+			defenderHP = Arrays.copyOf(defenderHP, capacity);
+			defenderX = Arrays.copyOf(defenderX, capacity);
+			defenderY = Arrays.copyOf(defenderY, capacity);
+			defenderTerm = Arrays.copyOf(defenderTerm, capacity);
+			live = Arrays.copyOf(live, capacity);
+			columnChanged = Arrays.copyOf(columnChanged, capacity);
+			columnOf = Arrays.copyOf(columnOf, capacity);
+			restride(capacity);
+		}
+		defenderSlotOf[id] = slot;
+		defenderIds[slot] = id;
+		live[slot] = false;
+		return slot;
+	}
+
+	/**
+	 * Widens the rows to fit more defenders. Every row is recomputed after.
+	 */
+	private void restride(int newStride) {
+		stride = newStride;
+		q = new double[attackerIds.length * stride];
+		invalidate();
+	}
+}
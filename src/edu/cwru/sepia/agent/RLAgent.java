@@ -8,24 +8,24 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import edu.cwru.sepia.action.Action;
-import edu.cwru.sepia.action.ActionFeedback;
-import edu.cwru.sepia.action.ActionResult;
-import edu.cwru.sepia.environment.model.history.DamageLog;
-import edu.cwru.sepia.environment.model.history.DeathLog;
 import edu.cwru.sepia.environment.model.history.History;
 import edu.cwru.sepia.environment.model.state.State;
-import edu.cwru.sepia.environment.model.state.Unit;
 
 public class RLAgent extends Agent {
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Set in the constructor. Defines how many learning episodes your agent
 	 * should run for. When starting an episode. If the count is greater than
@@ -33,22 +33,131 @@ public class RLAgent extends Agent {
 	 */
 	public final int numEpisodes;
 
+	/**
+	 * Footmen, unit HP and locations, occupancy and last turn's events, kept
+	 * up to date every turn. The fields below are shortcuts into it.
+	 */
+	private Battlefield battlefield;
 	/**
 	 * List of your footmen and your enemies footmen
 	 */
-	private List<Integer> myFootmen;
-	private List<Integer> enemyFootmen;
-	private HashMap<Integer, Integer> footmenHealth;
-	private HashMap<Integer, Position> footmenLocation;
+	private UnitSet myFootmen;
+	private UnitSet enemyFootmen;
+	/**
+	 * HP and location of every unit seen this episode, indexed by unit ID.
+	 */
+	private UnitTable units;
+	/**
+	 * Damage, deaths and command feedback from the previous turn.
+	 */
+	private TurnDigest digest;
 	private boolean isExploitating;
-	private HashMap<Integer, Double> staleQValue;
+	/**
+	 * Q-value of each footman's last chosen attack, indexed by unit ID.
+	 */
+	private double[] staleQValue;
 	private boolean eventOccured = true;
+	/**
+	 * Reward of the whole run so far. Without a GradientAccumulator it is
+	 * also the TD target's reward, as it always was.
+	 */
 	private double curReward = 0;
+	private double episodeStartReward = 0;
 	private int curEpisode = 0;
-	private List<Double> meanR;
+	/**
+	 * Average reward of the last CURVE_WINDOW blocks of 10 episodes, in
+	 * getCurveMeasure terms. Entry i is block curveOffset + i, and the last
+	 * entry is the block being played or the one just evaluated, the only
+	 * one ever updated. Finished blocks are appended to curveLog as they
+	 * complete.
+	 */
+	private ArrayDeque<Double> meanR;
+	private int curveOffset = 0;
+	public static final int CURVE_WINDOW = 10000;
+	public static final String CURVE_DIRECTORY = "average_reward";
+	private LearningCurveLog.Format curveFormat = LearningCurveLog.Format.TEXT;
+	private LearningCurveLog curveLog;
 	private int gamesWon = 0;
 	private int qLearningSet = 0;
 
+	/**
+	 * When set every episode learns. At the end of each block of 10 the
+	 * weights are published to the evaluator, which plays that block's
+	 * evaluation episodes on other threads. Their results are appended to
+	 * meanR in block order as they come back, so meanR can trail the blocks
+	 * played by a few entries until awaitEvaluations is called.
+	 */
+	private SnapshotEvaluator evaluator;
+	private int publishedBlocks = 0;
+	private int evaluatedBlocks = 0;
+
+	/**
+	 * When set the agent never learns and keeps no learning curve. Used for
+	 * the evaluator's agents.
+	 */
+	private boolean evaluationOnly = false;
+
+	/**
+	 * When set the agent is being driven in-process (see TrainingRunner). It
+	 * does not print per-episode results, does not write weights or reward
+	 * files, and does not call System.exit after the last episode.
+	 */
+	private boolean headless = false;
+
+	/**
+	 * Binary checkpoint written in the background every checkpointEpisodes
+	 * episodes or CHECKPOINT_SECONDS seconds, whichever comes first. The text
+	 * weights file is only written at the end of the run.
+	 */
+	public static final String CHECKPOINT_FILE = "agent_weights/weights.bin";
+	public static final int DEFAULT_CHECKPOINT_EPISODES = 100;
+	public static final long CHECKPOINT_SECONDS = 60;
+	private int checkpointEpisodes = DEFAULT_CHECKPOINT_EPISODES;
+	private WeightCheckpointer checkpointer;
+
+	/**
+	 * Optional experience replay. When set, every learning event also stores
+	 * each footman's previous attack as a transition and replays a minibatch
+	 * of past transitions.
+	 */
+	public static final int DEFAULT_REPLAY_BATCH = 32;
+	public static final double REPLAY_PRIORITY_ALPHA = 0.6;
+	public static final double REPLAY_PRIORITY_BETA = 0.4;
+	private ReplayBuffer replay;
+	private int replayBatchSize = DEFAULT_REPLAY_BATCH;
+
+	/**
+	 * Optional batched updates. When set, updateWeights only adds each
+	 * footman's gradient and the sum is applied after the event, see
+	 * GradientAccumulator.
+	 */
+	private GradientAccumulator accumulator;
+	/**
+	 * Features of each footman's last chosen attack, features.size() per unit ID,
+	 * waiting for the reward and next Q-value that complete the transition.
+	 */
+	private double[] lastFeatures;
+	private final UnitSet openTransitions = new UnitSet();
+
+	/**
+	 * Optional log of every decision for offline learning, see
+	 * TrajectoryRecorder. With recordCandidates every enemy the footman could
+	 * have attacked gets a record, not only the chosen one.
+	 */
+	private TrajectoryRecorder trajectory;
+	private boolean recordCandidates;
+	private final UnitSet recordedFootmen = new UnitSet();
+
+	/**
+	 * Throughput, latency and learning metrics, or null when not collected.
+	 * Agents that are not headless register them with JMX and append them to
+	 * METRICS_FILE every METRICS_SECONDS seconds.
+	 */
+	public static final String METRICS_FILE = "metrics/training.csv";
+	public static final long METRICS_SECONDS = 10;
+	private TrainingMetrics metrics;
+	private MetricsCsvSink metricsSink;
+
 	/**
 	 * Convenience variable specifying enemy agent number. Use this whenever
 	 * referring to the enemy agent. We will make sure it is set to the proper
@@ -71,19 +180,121 @@ public class RLAgent extends Agent {
 	/**
 	 * Your Q-function weights.
 	 */
-	public Double[] weights;
+	public double[] weights;
+	/**
+	 * Held while rescaling weights shared with other agents, or null if the
+	 * weights are this agent's own. See useWeights.
+	 */
+	private AtomicBoolean rescaling;
+
+	/**
+	 * Scratch feature vector reused for every Q-value evaluation so action
+	 * selection does not allocate.
+	 */
+	private double[] featureBuffer = new double[NUM_FEATURES];
+
+	/**
+	 * What the weights are weights of. calculateFeatureVector below is
+	 * written out by hand for the standard features and goes through the
+	 * extractor for any other.
+	 */
+	private FeatureExtractor features = FeatureExtractor.standard(ENEMY_PLAYERNUM);
+	/**
+	 * Builds features like these for other games, such as an evaluator's, or
+	 * null if they were set directly and cannot be rebuilt.
+	 */
+	private FeatureExtractor.Factory featureFactory = FeatureExtractor.STANDARD;
+	/**
+	 * Q-values of every footman against every enemy, brought up to date each
+	 * time actions are assigned.
+	 */
+	private final QMatrix qMatrix = new QMatrix();
 
 	/**
-	 * These variables are set for you according to the assignment definition.
-	 * You can change them, but it is not recommended. If you do change them
-	 * please let us know and explain your reasoning for changing them.
+	 * Time each middleStep may take, in nanoseconds, or 0 to always score
+	 * every footman against every enemy. With a budget, footmen first get a
+	 * cheap target and are then rescored one at a time until the time left
+	 * is what learning from the event is expected to take, see
+	 * assignWithinBudget. learnNanosPerFootman is that expectation, a moving
+	 * average over earlier events. Replay minibatches are put off to a later
+	 * event if the budget is already spent.
 	 */
-	public final double gamma = 0.9;
-	public final double learningRate = .0001;
-	public final double epsilon = .02;
+	private long decisionBudgetNanos = 0;
+	private double learnNanosPerFootman = 0;
+	private int refinedLastTurn = 0;
+	private int fallbackLastTurn = 0;
+	private int refineCursor = 0;
+	private int[] refineOrder = new int[16];
+	private int[] keptOrder = new int[16];
 
+	/**
+	 * Target of each footman's last attack order, indexed by unit ID, -1 if
+	 * it has none this episode.
+	 */
+	private int[] currentTarget;
+
+	/**
+	 * Target of the attack each footman is carrying out in SEPIA, indexed by
+	 * unit ID, -1 if it has none. With action diffing an order for the same
+	 * target is only sent again once SEPIA reports the attack completed or
+	 * failed, since every new compound attack makes SEPIA plan the path
+	 * again.
+	 */
+	private int[] issuedTarget;
+	private boolean actionDiffing = true;
+	private int suppressedLastTurn = 0;
+
+	/**
+	 * Footmen given orders by the last assignAction, in the order their
+	 * learning updates are applied, and the best Q-value of each one's row.
+	 * NaN if the row was not fully scored, which only happens with a
+	 * decision budget; replay then drops the transition it would close.
+	 */
+	private final UnitSet ordered = new UnitSet();
+	private double[] orderedBestQ = new double[16];
+
+	/**
+	 * These variables are set for you according to the assignment definition,
+	 * see Hyperparameters.DEFAULTS. Agents created programmatically can be
+	 * given other values, for example by HyperparameterSweep.
+	 */
+	public final double gamma;
+	public final double learningRate;
+	public final double epsilon;
+
+	/**
+	 * Constructor used by SEPIA configs. The arguments are positional and
+	 * every one may be left off along with all that follow it:
+	 *
+	 * <pre>
+	 *  0 episodes                 number of learning episodes, default 10
+	 *  1 loadWeights              true to start from the saved weights
+	 *  2 checkpointEpisodes       episodes between binary checkpoints
+	 *  3 replayCapacity           transitions kept for replay, 0 for none
+	 *  4 prioritized              true for prioritized replay
+	 *  5 curveFormat              TEXT or BINARY learning curve
+	 *  6 evaluatorMap             map for concurrent evaluation, or none
+	 *  7 evaluatorThreads         threads playing evaluation episodes
+	 *  8 decisionBudget           microseconds per middleStep, 0 for none
+	 *  9 trajectoryDirectory      where to log decisions, or none
+	 * 10 recordCandidates         true to log every enemy considered
+	 * 11 pathFeatures             true to add DistanceFields features
+	 * 12 optimizer                GradientAccumulator optimizer, or none
+	 * 13 window                   events per accumulated step
+	 * 14 maxNorm                  gradient norm limit, 0 for none
+	 * </pre>
+	 *
+	 * Saved weights must have been trained with the same pathFeatures
+	 * setting.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the loaded weights do not go with the features
+	 */
 	public RLAgent(int playernum, String[] args) {
 		super(playernum);
+		this.gamma = Hyperparameters.DEFAULTS.gamma;
+		this.learningRate = Hyperparameters.DEFAULTS.learningRate;
+		this.epsilon = Hyperparameters.DEFAULTS.epsilon;
 
 		if (args.length >= 1) {
 			numEpisodes = Integer.parseInt(args[0]);
@@ -100,20 +311,131 @@ public class RLAgent extends Agent {
 			System.out.println("Warning! Load weights argument not specified. Defaulting to not loading.");
 		}
 
-		if (loadWeights) {
-			weights = loadWeights();
+		if (args.length >= 3) {
+			checkpointEpisodes = Integer.parseInt(args[2]);
+		}
+
+		double[] loaded = loadWeights ? loadWeights() : null;
+		initialize(loaded);
+
+		// path distance features, read first since replay, trajectory logs
+		// and batched updates are sized by the feature count
+		if (args.length >= 12 && Boolean.parseBoolean(args[11])) {
+			setFeatureFactory(DistanceFields.WITH_PATH_FEATURES);
+		}
+		// setFeatureFactory would have replaced them with random weights
+		if (loaded != null && loaded.length != this.features.size()) {
+			throw new IllegalArgumentException("Loaded " + loaded.length + " weights for " + this.features.size()
+					+ " features, check the pathFeatures argument");
+		}
+
+		// replay capacity in transitions, 0 disables replay
+		if (args.length >= 4 && Integer.parseInt(args[3]) > 0) {
+			boolean prioritized = args.length >= 5 && Boolean.parseBoolean(args[4]);
+			setReplayBuffer(new ReplayBuffer(Integer.parseInt(args[3]), this.features.size(),
+					prioritized ? REPLAY_PRIORITY_ALPHA : 0, REPLAY_PRIORITY_BETA), DEFAULT_REPLAY_BATCH);
+		}
+
+		// learning curve file format, text or binary
+		if (args.length >= 6) {
+			curveFormat = LearningCurveLog.Format.valueOf(args[5].toUpperCase());
+		}
+
+		// map to play evaluation episodes on concurrently, and how many at once
+		if (args.length >= 7) {
+			int threads = args.length >= 8 ? Integer.parseInt(args[7])
+					: Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+			if (!args[6].equalsIgnoreCase("none")) {
+				setEvaluator(new SnapshotEvaluator(args[6], TrainingRunner.DEFAULT_ENEMY_AGENT,
+						SnapshotEvaluator.DEFAULT_GAMES_PER_SNAPSHOT, threads, 0, this.featureFactory));
+			}
+		}
+
+		// per-turn decision budget in microseconds, 0 for none
+		if (args.length >= 9) {
+			setDecisionBudget(Long.parseLong(args[8]) * 1000);
+		}
+
+		// trajectory directory, or none, and whether to record every candidate
+		if (args.length >= 10 && !args[9].equalsIgnoreCase("none")) {
+			try {
+				setTrajectoryRecorder(new TrajectoryRecorder(new File(args[9]), this.features.size()),
+						args.length >= 11 && Boolean.parseBoolean(args[10]));
+			} catch (IOException ex) {
+				System.err.println("Failed to open trajectory log. Reason: " + ex.getMessage());
+			}
+		}
+
+		// batched updates: optimizer or none, events per step, gradient
+		// norm limit
+		if (args.length >= 13 && !args[12].equalsIgnoreCase("none")) {
+			int window = args.length >= 14 ? Integer.parseInt(args[13]) : 1;
+			double maxNorm = args.length >= 15 ? Double.parseDouble(args[14]) : 0;
+			setGradientAccumulator(new GradientAccumulator(this.features.size(),
+					GradientAccumulator.Optimizer.valueOf(args[12].toUpperCase()), window, maxNorm, true));
+		}
+	}
+
+	/**
+	 * Creates an agent for programmatic use instead of from a SEPIA config.
+	 *
+	 * @param playernum
+	 *            Player this agent controls
+	 * @param numEpisodes
+	 *            Number of episodes to learn for
+	 * @param initialWeights
+	 *            Starting weights, copied. If null the weights start at random
+	 *            values between -1 and 1.
+	 */
+	public RLAgent(int playernum, int numEpisodes, double[] initialWeights) {
+		this(playernum, numEpisodes, initialWeights, Hyperparameters.DEFAULTS);
+	}
+
+	/**
+	 * Creates an agent for programmatic use with its own learning parameters.
+	 *
+	 * @param playernum
+	 *            Player this agent controls
+	 * @param numEpisodes
+	 *            Number of episodes to learn for
+	 * @param initialWeights
+	 *            Starting weights, copied. If null the weights start at random
+	 *            values between -1 and 1.
+	 * @param hyperparameters
+	 *            Discount factor, learning rate and exploration rate
+	 */
+	public RLAgent(int playernum, int numEpisodes, double[] initialWeights, Hyperparameters hyperparameters) {
+		super(playernum);
+		this.numEpisodes = numEpisodes;
+		this.gamma = hyperparameters.gamma;
+		this.learningRate = hyperparameters.learningRate;
+		this.epsilon = hyperparameters.epsilon;
+		initialize(initialWeights == null ? null : initialWeights.clone());
+	}
+
+	private void initialize(double[] initialWeights) {
+		if (initialWeights != null) {
+			weights = initialWeights;
 		} else {
 			// initialize weights to random values between -1 and 1
-			weights = new Double[NUM_FEATURES];
+			weights = new double[NUM_FEATURES];
 			for (int i = 0; i < weights.length; i++) {
 				weights[i] = random.nextDouble() * 2 - 1;
 			}
 		}
 
-		this.footmenHealth = new HashMap<Integer, Integer>();
-		this.footmenLocation = new HashMap<Integer, Position>();
-		this.staleQValue = new HashMap<Integer, Double>();
-		this.meanR = new ArrayList<Double>();
+		this.battlefield = new Battlefield(playernum, ENEMY_PLAYERNUM);
+		this.myFootmen = this.battlefield.myFootmen();
+		this.enemyFootmen = this.battlefield.enemyFootmen();
+		this.units = this.battlefield.units();
+		this.digest = this.battlefield.digest();
+		this.staleQValue = new double[this.units.capacity()];
+		this.currentTarget = new int[this.units.capacity()];
+		Arrays.fill(this.currentTarget, -1);
+		this.issuedTarget = new int[this.units.capacity()];
+		Arrays.fill(this.issuedTarget, -1);
+		this.lastFeatures = new double[this.units.capacity() * NUM_FEATURES];
+		this.meanR = new ArrayDeque<Double>();
 	}
 
 	/**
@@ -127,37 +449,28 @@ public class RLAgent extends Agent {
 		// learning episode
 		exploitationCheck();
 
-		// Find all of your units
-		myFootmen = new LinkedList<>();
-		for (Integer unitId : stateView.getUnitIds(playernum)) {
-			Unit.UnitView unit = stateView.getUnit(unitId);
-
-			String unitName = unit.getTemplateView().getName().toLowerCase();
-			if (unitName.equals("footman")) {
-				myFootmen.add(unitId);
-				this.footmenHealth.put(unitId, stateView.getUnit(unitId).getHP());
-				this.footmenLocation.put(unitId, new Position(stateView.getUnit(unitId).getXPosition(),
-						stateView.getUnit(unitId).getYPosition()));
-				this.staleQValue.put(unitId, random.nextDouble());
-			} else {
-				System.err.println("Unknown unit type: " + unitName);
+		if (!this.headless && this.metricsSink == null) {
+			if (this.metrics == null) {
+				this.metrics = new TrainingMetrics();
+				this.metrics.register(TrainingMetrics.DEFAULT_OBJECT_NAME);
 			}
+			this.metricsSink = new MetricsCsvSink(this.metrics, new File(METRICS_FILE), METRICS_SECONDS);
+		}
+		if (!this.headless && this.curveLog == null) {
+			this.curveLog = new LearningCurveLog(new File(CURVE_DIRECTORY), this.curveFormat, getCurveMeasure(), 10);
 		}
 
-		// Find all of the enemy units
-		enemyFootmen = new LinkedList<>();
-		for (Integer unitId : stateView.getUnitIds(ENEMY_PLAYERNUM)) {
-			Unit.UnitView unit = stateView.getUnit(unitId);
-
-			String unitName = unit.getTemplateView().getName().toLowerCase();
-			if (unitName.equals("footman")) {
-				enemyFootmen.add(unitId);
-				this.footmenHealth.put(unitId, stateView.getUnit(unitId).getHP());
-				this.footmenLocation.put(unitId, new Position(stateView.getUnit(unitId).getXPosition(),
-						stateView.getUnit(unitId).getYPosition()));
-			} else {
-				System.err.println("Unknown unit type: " + unitName);
-			}
+		openTransitions.clear();
+		recordedFootmen.clear();
+		episodeStartReward = curReward;
+
+		// Find all of your units and the enemy units
+		this.battlefield.start(stateView);
+		this.qMatrix.clear();
+		Arrays.fill(this.currentTarget, -1);
+		Arrays.fill(this.issuedTarget, -1);
+		for (int i = 0; i < this.myFootmen.size(); i++) {
+			setStaleQValue(this.myFootmen.get(i), random.nextDouble());
 		}
 
 		return middleStep(stateView, historyView);
@@ -198,70 +511,247 @@ public class RLAgent extends Agent {
 	 */
 	@Override
 	public Map<Integer, Action> middleStep(State.StateView stateView, History.HistoryView historyView) {
+		boolean budgeted = this.decisionBudgetNanos > 0;
+		long start = this.metrics != null || budgeted ? System.nanoTime() : 0;
+		long startBytes = this.metrics != null ? TrainingMetrics.threadAllocatedBytes() : -1;
+		long deadline = start + this.decisionBudgetNanos;
 
 		updateBasedOnEvent(stateView, historyView);
 		Map<Integer, Action> returnActions = new HashMap<Integer, Action>();
 
 		if (!this.eventOccured) {
-			ArrayList<Integer> idleFootmenID = new ArrayList<Integer>();
-			for (ActionResult action : historyView.getCommandFeedback(playernum, stateView.getTurnNumber() - 1)
-					.values()) {
-				if (action.getFeedback() == ActionFeedback.COMPLETED) {
-					idleFootmenID.add(action.getAction().getUnitId());
-				}
-			}
-			returnActions = assignAction(stateView, historyView, idleFootmenID);
+			// footmen whose last command completed are idle
+			returnActions = assignAction(stateView, historyView, this.digest.completed(), deadline);
 		}
 		if (this.eventOccured) {
-			returnActions = assignAction(stateView, historyView, this.myFootmen);
-			for (Integer footman : returnActions.keySet()) {
-				this.curReward += this.calculateReward(stateView, historyView, footman);
+			// leave time to learn from every footman after choosing
+			long learnReserve = budgeted ? (long) (this.learnNanosPerFootman * this.myFootmen.size()) : 0;
+			returnActions = assignAction(stateView, historyView, this.myFootmen, deadline - learnReserve);
+			long learnStart = budgeted ? System.nanoTime() : 0;
+			int rows = this.ordered.size();
+			for (int row = 0; row < rows; row++) {
+				int footman = this.ordered.get(row);
+				double reward = this.calculateReward(stateView, historyView, footman);
+				this.curReward += reward;
+				if (this.trajectory != null) {
+					recordDecision(stateView, footman, this.currentTarget[footman], reward);
+				}
 
 				if (!this.isExploitating) {
-					double[] f = this.calculateFeatureVector(stateView, historyView, footman,
-							returnActions.get(footman).getUnitId());
-					double staleQValue = this.staleQValue.get(footman);
-					double[] fVal = this.calculateFeatureVector(stateView, historyView, footman,
-							returnActions.get(footman).getUnitId());
-					double updatedQValue = this.calcQValue(fVal);
-					this.staleQValue.put(footman, updatedQValue);
-					updateWeights(staleQValue, updatedQValue, f);
+					int target = this.currentTarget[footman];
+					double[] f = this.calculateFeatureVector(footman, target, this.featureBuffer);
+					double staleQValue = this.staleQValue[footman];
+					double updatedQValue = this.calcQValue(f);
+					this.staleQValue[footman] = updatedQValue;
+					updateWeights(reward, staleQValue, updatedQValue, f);
+					if (this.replay != null) {
+						recordTransition(footman, reward, this.orderedBestQ[row], f);
+					}
 				}
 			}
+			if (this.accumulator != null && !this.isExploitating) {
+				applyAccumulated(this.accumulator.endEvent(this.weights, this.learningRate));
+			}
+			if (this.trajectory != null) {
+				recordTerminals(stateView, historyView, false);
+			}
+			if (this.replay != null && !this.isExploitating) {
+				closeTransitions(stateView, historyView, false);
+				if ((!budgeted || System.nanoTime() < deadline) && this.replay.train(this.weights,
+						this.replayBatchSize, this.learningRate, this.gamma, this.random) > 0) {
+					normalizeWeights();
+				}
+			}
+			if (budgeted && rows > 0) {
+				double perFootman = (double) (System.nanoTime() - learnStart) / rows;
+				this.learnNanosPerFootman = this.learnNanosPerFootman == 0 ? perFootman
+						: this.learnNanosPerFootman + (perFootman - this.learnNanosPerFootman) / 8;
+			}
 		}
 
+		if (this.metrics != null) {
+			this.metrics.recordTurn();
+			this.metrics.recordMiddleStep(System.nanoTime() - start);
+			if (startBytes >= 0) {
+				this.metrics.recordAllocation(TrainingMetrics.threadAllocatedBytes() - startBytes);
+			}
+		}
 		return returnActions;
 	}
 
-	private double[] updateWeights(double staleQVal, double updatedQVal, double[] features) {
-
-		double[] doubleVals = new double[this.weights.length];
+	/**
+	 * Moves the weights by one TD step and renormalizes them, or with a
+	 * GradientAccumulator only adds the step to it.
+	 *
+	 * Without an accumulator the TD target uses the running total curReward.
+	 * With one it uses this turn's reward, since curReward grows with every
+	 * footman of the event and would make the summed step depend on the
+	 * order the footmen are visited in.
+	 *
+	 * @param reward
+	 *            This turn's team reward from calculateReward. Every footman
+	 *            of an event gets the same one.
+	 * @return The TD error
+	 */
+	double updateWeights(double reward, double staleQVal, double updatedQVal, double[] features) {
+		double tdError = (this.accumulator != null ? reward : this.curReward) + this.gamma * updatedQVal
+				- staleQVal;
+		if (this.metrics != null) {
+			this.metrics.recordWeightUpdate(tdError);
+		}
+		if (this.accumulator != null) {
+			this.accumulator.add(tdError, features);
+			return tdError;
+		}
 
 		for (int i = 0; i < this.weights.length; i++) {
-			this.weights[i] = this.weights[i]
-					+ this.learningRate * (this.curReward + this.gamma * updatedQVal - staleQVal) * features[i];
-			doubleVals[i] = this.weights[i];
+			this.weights[i] = this.weights[i] + this.learningRate * tdError * features[i];
+		}
+		normalizeWeights();
+		return tdError;
+	}
+
+	/**
+	 * Renormalizes after the accumulator changed the weights, if it asks for
+	 * it.
+	 */
+	private void applyAccumulated(boolean changed) {
+		if (changed && this.accumulator.isNormalizing()) {
+			normalizeWeights();
 		}
+	}
 
-		// normalize
+	/**
+	 * Normalizes the weights, unless they are shared and another agent is
+	 * already rescaling them.
+	 */
+	private void normalizeWeights() {
+		if (this.rescaling != null && !this.rescaling.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			normalize(this.weights);
+		} finally {
+			if (this.rescaling != null) {
+				this.rescaling.set(false);
+			}
+		}
+	}
 
+	/**
+	 * Rescales the weights linearly so the smallest is -1 and the largest 1.
+	 */
+	static void normalize(double[] weights) {
 		double max = Double.MIN_VALUE;
 		double min = Double.MAX_VALUE;
 
-		for (int i = 0; i < this.weights.length; i++) {
-			if (this.weights[i] > max) {
-				max = this.weights[i];
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] > max) {
+				max = weights[i];
 			}
-			if (this.weights[i] < min) {
-				min = this.weights[i];
+			if (weights[i] < min) {
+				min = weights[i];
 			}
 		}
 
-		for (int i = 0; i < this.weights.length; i++) {
-			this.weights[i] = 2 * (this.weights[i] - min) / (max - min) - 1;
-			doubleVals[i] = this.weights[i];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = 2 * (weights[i] - min) / (max - min) - 1;
+		}
+	}
+
+	/**
+	 * Completes the open transition of a footman, if any, and opens a new one
+	 * for the attack it was just given.
+	 *
+	 * @param reward
+	 *            Reward received since the footman's last order
+	 * @param nextMaxQ
+	 *            Best Q-value available to the footman now
+	 * @param features
+	 *            Features of the attack it was just given
+	 */
+	private void recordTransition(int footman, double reward, double nextMaxQ, double[] features) {
+		int size = this.features.size();
+		int base = footman * size;
+		if (base + size > this.lastFeatures.length) {
+			this.lastFeatures = Arrays.copyOf(this.lastFeatures, Math.max(base + size, this.lastFeatures.length * 2));
+		}
+		if (this.openTransitions.contains(footman) && !Double.isNaN(nextMaxQ)) {
+			this.replay.add(this.lastFeatures, base, reward, nextMaxQ);
+		}
+		System.arraycopy(features, 0, this.lastFeatures, base, size);
+		this.openTransitions.add(footman);
+	}
+
+	/**
+	 * Writes a footman's new order to the trajectory log, preceded by the
+	 * enemies it was not ordered to attack if candidates are recorded.
+	 */
+	private void recordDecision(State.StateView stateView, int footman, int target, double reward) {
+		int turn = stateView.getTurnNumber();
+		int flags = this.isExploitating ? TrajectoryRecorder.EXPLOITING : 0;
+		try {
+			if (this.recordCandidates) {
+				for (int i = 0; i < this.enemyFootmen.size(); i++) {
+					int enemy = this.enemyFootmen.get(i);
+					if (enemy != target) {
+						this.trajectory.record(this.curEpisode, turn, footman, enemy, target, flags, reward,
+								this.calculateFeatureVector(footman, enemy, this.featureBuffer));
+					}
+				}
+			}
+			this.trajectory.record(this.curEpisode, turn, footman, target, target, flags | TrajectoryRecorder.CHOSEN,
+					reward, this.calculateFeatureVector(footman, target, this.featureBuffer));
+			this.recordedFootmen.add(footman);
+		} catch (IOException ex) {
+			System.err.println("Failed to record trajectory, recording stopped. Reason: " + ex.getMessage());
+			this.trajectory = null;
+		}
+	}
+
+	/**
+	 * Writes a TERMINAL record for every footman with a logged decision that
+	 * has no future, as closeTransitions does for replay.
+	 *
+	 * @param all
+	 *            true at the end of the episode, false to only close dead
+	 *            footmen
+	 */
+	private void recordTerminals(State.StateView stateView, History.HistoryView historyView, boolean all) {
+		int flags = TrajectoryRecorder.TERMINAL | (this.isExploitating ? TrajectoryRecorder.EXPLOITING : 0);
+		for (int i = this.recordedFootmen.size() - 1; i >= 0 && this.trajectory != null; i--) {
+			int footman = this.recordedFootmen.get(i);
+			if (all || !this.myFootmen.contains(footman)) {
+				try {
+					this.trajectory.record(this.curEpisode, stateView.getTurnNumber(), footman, -1, -1, flags,
+							this.calculateReward(stateView, historyView, footman), null);
+				} catch (IOException ex) {
+					System.err.println("Failed to record trajectory, recording stopped. Reason: " + ex.getMessage());
+					this.trajectory = null;
+				}
+				this.recordedFootmen.remove(footman);
+			}
+		}
+	}
+
+	/**
+	 * Completes the open transitions of footmen that have no future, with a
+	 * next Q-value of 0.
+	 *
+	 * @param all
+	 *            true at the end of the episode, false to only complete those
+	 *            of dead footmen
+	 */
+	private void closeTransitions(State.StateView stateView, History.HistoryView historyView, boolean all) {
+		// backwards, since remove moves the last member into the freed slot
+		for (int i = this.openTransitions.size() - 1; i >= 0; i--) {
+			int footman = this.openTransitions.get(i);
+			if (all || !this.myFootmen.contains(footman)) {
+				int base = footman * this.features.size();
+				this.replay.add(this.lastFeatures, base, this.calculateReward(stateView, historyView, footman), 0);
+				this.openTransitions.remove(footman);
+			}
 		}
-		return doubleVals;
 	}
 
 	/**
@@ -278,36 +768,376 @@ public class RLAgent extends Agent {
 		// MAKE SURE YOU CALL printTestData after you finish a test episode.
 		updateBasedOnEvent(stateView, historyView);
 		if (this.myFootmen.size() == 0) {
-			System.out.println(this.curEpisode + " I LOST, game won: " + this.gamesWon);
+			if (!this.headless) {
+				System.out.println(this.curEpisode + " I LOST, game won: " + this.gamesWon);
+			}
 		} else {
-			System.out.println(this.curEpisode + " I WON, game won: " + this.gamesWon);
+			if (!this.headless) {
+				System.out.println(this.curEpisode + " I WON, game won: " + this.gamesWon);
+			}
 			this.gamesWon++;
 		}
+		if (this.metrics != null) {
+			this.metrics.recordEpisode(this.curReward - this.episodeStartReward, this.myFootmen.size() > 0);
+		}
 
-		if (this.curEpisode % 10 == 0) {
-			this.meanR.set(this.qLearningSet,
-					this.meanR.get(this.qLearningSet) + (this.curReward - this.meanR.get(this.qLearningSet)));
-		} else {
-			this.meanR.set(this.qLearningSet, this.meanR.get(this.qLearningSet)
-					+ (this.curReward - this.meanR.get(this.qLearningSet)) / this.curEpisode % 10);
+		if (this.replay != null && !this.isExploitating) {
+			closeTransitions(stateView, historyView, true);
+		}
+		if (this.accumulator != null && !this.isExploitating) {
+			// a window never spans two episodes
+			applyAccumulated(this.accumulator.flush(this.weights, this.learningRate));
+		}
+		if (this.trajectory != null) {
+			recordTerminals(stateView, historyView, true);
+		}
+
+		if (isInterleaved()) {
+			double mean = this.meanR.removeLast();
+			if (this.curEpisode % 10 == 0) {
+				this.meanR.addLast(mean + (this.curReward - mean));
+			} else {
+				this.meanR.addLast(mean + (this.curReward - mean) / this.curEpisode % 10);
+			}
 		}
 
 		this.curEpisode++;
 
 		if (this.curEpisode % 10 == 0) {
+			if (this.evaluator != null) {
+				publishSnapshot();
+			} else if (!this.evaluationOnly) {
+				finishBlock(this.qLearningSet);
+			}
 			this.qLearningSet++;
 		}
+		if (this.evaluator != null) {
+			appendEvaluations(this.evaluator.poll());
+		}
+
+		if (this.headless) {
+			return;
+		}
+
+		if (this.checkpointer == null) {
+			this.checkpointer = new WeightCheckpointer(new File(CHECKPOINT_FILE), this.checkpointEpisodes,
+					CHECKPOINT_SECONDS);
+		}
 
 		if (this.curEpisode == this.numEpisodes) {
 			this.saveWeights(weights);
-			printTestData(this.meanR);
-			saveTestData(this.meanR);
-			count(this.meanR);
+			// written after the text file so loadWeights picks the exact copy
+			this.checkpointer.checkpoint(this.curEpisode, weights);
+			this.checkpointer.close();
+			this.metricsSink.close();
+			if (this.evaluator != null) {
+				awaitEvaluations();
+				this.evaluator.close();
+			} else if (this.curEpisode % 10 != 0) {
+				// the last block is partial, written like the full ones
+				finishBlock(this.qLearningSet);
+			}
+			this.curveLog.close();
+			if (this.trajectory != null) {
+				closeTrajectoryRecorder();
+			}
+			if (this.curveOffset == 0 && getCurveMeasure() == LearningCurveLog.Measure.CUMULATIVE) {
+				printTestData(getLearningCurve());
+			} else {
+				printTestData(getLearningCurve(), this.curveOffset, getCurveMeasure().label);
+			}
 			System.out.println("games won: " + this.gamesWon);
 			System.exit(0);
 		}
 		// Save your weights
-		saveWeights(weights);
+		this.checkpointer.onEpisodeEnd(this.curEpisode, weights);
+	}
+
+	/**
+	 * Makes the agent read and update the given array in place instead of its
+	 * own weights. Several agents given the same array train one shared
+	 * weight vector without locking (see ParallelTrainer).
+	 *
+	 * @param weights
+	 *            Array of one weight per feature
+	 */
+	public void useWeights(double[] weights) {
+		useWeights(weights, null);
+	}
+
+	/**
+	 * As useWeights(double[]), for an array other agents also update. Every
+	 * agent sharing the array must be given the same flag. Only one of them
+	 * rescales the array at a time; an agent that finds the flag taken skips
+	 * its rescale, since the one in progress covers its update.
+	 *
+	 * @param rescaling
+	 *            Flag shared by the agents, or null if the array is not shared
+	 */
+	public void useWeights(double[] weights, AtomicBoolean rescaling) {
+		if (weights.length != this.features.size()) {
+			throw new IllegalArgumentException(
+					"Got " + weights.length + " weights for " + this.features.size() + " features");
+		}
+		this.weights = weights;
+		this.rescaling = rescaling;
+	}
+
+	/**
+	 * Turns on experience replay.
+	 *
+	 * @param replay
+	 *            Buffer to store and sample transitions from, or null to turn
+	 *            replay off
+	 * @param batchSize
+	 *            Transitions replayed at every learning event
+	 */
+	public void setReplayBuffer(ReplayBuffer replay, int batchSize) {
+		if (replay != null && replay.numFeatures() != this.features.size()) {
+			throw new IllegalArgumentException("Replay buffer holds " + replay.numFeatures() + " features, the agent uses "
+					+ this.features.size());
+		}
+		this.replay = replay;
+		this.replayBatchSize = batchSize;
+		this.openTransitions.clear();
+	}
+
+	/**
+	 * Switches to batched weight updates.
+	 *
+	 * @param accumulator
+	 *            Where to sum each event's gradients, or null to update once
+	 *            per footman again
+	 */
+	public void setGradientAccumulator(GradientAccumulator accumulator) {
+		if (accumulator != null && accumulator.numFeatures() != this.features.size()) {
+			throw new IllegalArgumentException("Accumulator has " + accumulator.numFeatures()
+					+ " features, the agent uses " + this.features.size());
+		}
+		this.accumulator = accumulator;
+	}
+
+	/**
+	 * Starts logging every decision.
+	 *
+	 * @param trajectory
+	 *            Where to write the decisions, or null to stop. The agent
+	 *            closes it after its last episode unless headless.
+	 * @param recordCandidates
+	 *            true to also record every enemy a footman was not ordered to
+	 *            attack, for learners that maximize over actions
+	 */
+	public void setTrajectoryRecorder(TrajectoryRecorder trajectory, boolean recordCandidates) {
+		if (trajectory != null && trajectory.numFeatures() != this.features.size()) {
+			throw new IllegalArgumentException("Trajectory log holds " + trajectory.numFeatures()
+					+ " features, the agent uses " + this.features.size());
+		}
+		this.trajectory = trajectory;
+		this.recordCandidates = recordCandidates;
+		this.recordedFootmen.clear();
+	}
+
+	/**
+	 * Closes the trajectory log and stops recording.
+	 */
+	public void closeTrajectoryRecorder() {
+		try {
+			this.trajectory.close();
+		} catch (IOException ex) {
+			System.err.println("Failed to close trajectory log. Reason: " + ex.getMessage());
+		}
+		this.trajectory = null;
+	}
+
+	/**
+	 * Changes the features the agent learns and decides with. If their number
+	 * differs from the current weights' the weights start again at random
+	 * values between -1 and 1. Set it before setting a replay buffer and
+	 * before the first episode.
+	 *
+	 * @param features
+	 *            Features in weight order, see FeatureExtractor.standard for
+	 *            the default ones
+	 */
+	public void setFeatureExtractor(FeatureExtractor features) {
+		if (this.replay != null && this.replay.numFeatures() != features.size()) {
+			throw new IllegalStateException("Replay buffer holds " + this.replay.numFeatures() + " features, the "
+					+ "extractor has " + features.size());
+		}
+		if (this.accumulator != null && this.accumulator.numFeatures() != features.size()) {
+			throw new IllegalStateException("Gradient accumulator has " + this.accumulator.numFeatures()
+					+ " features, the extractor has " + features.size());
+		}
+		this.features = features;
+		if (this.weights.length != features.size()) {
+			this.weights = new double[features.size()];
+			for (int i = 0; i < this.weights.length; i++) {
+				this.weights[i] = random.nextDouble() * 2 - 1;
+			}
+		}
+		this.featureBuffer = new double[features.size()];
+		this.lastFeatures = new double[this.units.capacity() * features.size()];
+		this.openTransitions.clear();
+		this.qMatrix.setFeatureExtractor(features);
+		this.featureFactory = features.isStandard() ? FeatureExtractor.STANDARD : null;
+	}
+
+	/**
+	 * Sets the features the factory builds for this agent's battlefield, as
+	 * setFeatureExtractor does, and remembers the factory so evaluators and
+	 * policy servers can build the same features for their games.
+	 */
+	public void setFeatureFactory(FeatureExtractor.Factory factory) {
+		setFeatureExtractor(factory.create(this.battlefield));
+		this.featureFactory = factory;
+	}
+
+	public FeatureExtractor getFeatureExtractor() {
+		return this.features;
+	}
+
+	/**
+	 * @return The factory of the current features, or null if they were set
+	 *         with setFeatureExtractor
+	 */
+	public FeatureExtractor.Factory getFeatureFactory() {
+		return this.featureFactory;
+	}
+
+	/**
+	 * @return What the agent knows about the game, for features that keep
+	 *         their own caches of it such as DistanceFields
+	 */
+	public Battlefield getBattlefield() {
+		return this.battlefield;
+	}
+
+	/**
+	 * @param metrics
+	 *            Where to record throughput, latency and learning metrics, or
+	 *            null to record nothing. May be shared between agents.
+	 */
+	public void setMetrics(TrainingMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param actionDiffing
+	 *            false to send every footman's order on every decision, as
+	 *            before action diffing
+	 */
+	public void setActionDiffing(boolean actionDiffing) {
+		this.actionDiffing = actionDiffing;
+	}
+
+	/**
+	 * @return Orders assignAction left out on the last decision because the
+	 *         footman was already attacking that target
+	 */
+	public int getSuppressedLastTurn() {
+		return this.suppressedLastTurn;
+	}
+
+	public void setHeadless(boolean headless) {
+		this.headless = headless;
+	}
+
+	/**
+	 * Moves evaluation episodes off the training thread.
+	 *
+	 * @param evaluator
+	 *            Where to play each block's evaluation episodes, or null to
+	 *            interleave them with learning episodes. Must be set before
+	 *            the first episode, and built with getFeatureFactory() if the
+	 *            features are not the standard ones.
+	 */
+	public void setEvaluator(SnapshotEvaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	/**
+	 * @param nanos
+	 *            Time each middleStep may take, or 0 for no limit
+	 */
+	public void setDecisionBudget(long nanos) {
+		this.decisionBudgetNanos = Math.max(0, nanos);
+	}
+
+	/**
+	 * @return Footmen whose target was chosen by a full Q-value argmax on the
+	 *         last decision made within a budget
+	 */
+	public int getRefinedLastTurn() {
+		return this.refinedLastTurn;
+	}
+
+	/**
+	 * @return Footmen left with their fallback target on the last decision
+	 *         made within a budget
+	 */
+	public int getFallbackLastTurn() {
+		return this.fallbackLastTurn;
+	}
+
+	public void setEvaluationOnly(boolean evaluationOnly) {
+		this.evaluationOnly = evaluationOnly;
+	}
+
+	/**
+	 * Waits for the evaluator to finish every block published so far, plus
+	 * the last block if it is partial, and appends the results to the
+	 * learning curve. Does nothing without an evaluator.
+	 */
+	public void awaitEvaluations() {
+		if (this.evaluator == null) {
+			return;
+		}
+		if (this.curEpisode % 10 != 0 && this.publishedBlocks == this.qLearningSet) {
+			publishSnapshot();
+		}
+		appendEvaluations(this.evaluator.drain());
+	}
+
+	/**
+	 * @return true once numEpisodes episodes have been played
+	 */
+	public boolean isFinished() {
+		return this.curEpisode >= this.numEpisodes;
+	}
+
+	public int getEpisodesPlayed() {
+		return this.curEpisode;
+	}
+
+	public int getGamesWon() {
+		return this.gamesWon;
+	}
+
+	/**
+	 * @return Reward collected in the last finished episode
+	 */
+	public double getLastEpisodeReward() {
+		return this.curReward - this.episodeStartReward;
+	}
+
+	/**
+	 * @return A copy of the average reward of every block of 10 episodes so
+	 *         far, in the same layout printTestData prints. Only the last
+	 *         CURVE_WINDOW blocks are kept. See getCurveMeasure for what the
+	 *         values mean.
+	 */
+	public List<Double> getLearningCurve() {
+		return new ArrayList<Double>(this.meanR);
+	}
+
+	/**
+	 * @return CUMULATIVE when evaluation episodes run in line, where a block
+	 *         is the mean of the run's cumulative reward after each of its
+	 *         evaluation episodes. EPISODE with an evaluator, where it is the
+	 *         mean reward of one evaluation episode.
+	 */
+	public LearningCurveLog.Measure getCurveMeasure() {
+		return this.evaluator != null ? LearningCurveLog.Measure.EPISODE : LearningCurveLog.Measure.CUMULATIVE;
 	}
 
 	/**
@@ -334,6 +1164,21 @@ public class RLAgent extends Agent {
 		}
 	}
 
+	/**
+	 * Epsilon-greedy selection for the footman in the given row of qMatrix,
+	 * which must already be evaluated.
+	 */
+	private int selectAction(int row) {
+
+		boolean getRandom = (random.nextDouble() >= (1 - this.epsilon));
+
+		if (getRandom) {
+			return this.enemyFootmen.get(random.nextInt((enemyFootmen.size())));
+		} else {
+			return this.qMatrix.bestDefender(row);
+		}
+	}
+
 	/**
 	 * Given the current state and the footman in question calculate the reward
 	 * received on the last turn. This is where you will check for things like
@@ -376,27 +1221,18 @@ public class RLAgent extends Agent {
 	 */
 	public double calculateReward(State.StateView stateView, History.HistoryView historyView, int footmanId) {
 		double reward = -1;
-		int turn = stateView.getTurnNumber();
-
-		if (turn > 0) {
-			for (DamageLog damage : historyView.getDamageLogs(turn - 1)) {
-				if (damage.getDefenderController() == this.playernum) {
-					reward -= damage.getDamage();
-				}
-				if (damage.getDefenderController() == ENEMY_PLAYERNUM) {
-					reward += damage.getDamage();
-				}
-			}
-			for (DeathLog death : historyView.getDeathLogs(turn - 1)) {
-				if (death.getController() == this.playernum) {
-					for (Integer footmenID : this.myFootmen) {
-						reward -= death.getDeadUnitID() == footmenID ? 100 : 0;
-					}
+		this.digest.update(stateView, historyView, playernum);
+
+		if (this.digest.getTurn() > 0) {
+			reward -= this.digest.damageTakenByPlayer(this.playernum);
+			reward += this.digest.damageTakenByPlayer(ENEMY_PLAYERNUM);
+			for (int i = 0; i < this.digest.deathCount(); i++) {
+				int deadId = this.digest.deadUnit(i);
+				if (this.digest.deadController(i) == this.playernum) {
+					reward -= this.myFootmen.contains(deadId) ? 100 : 0;
 				}
-				if (death.getController() == ENEMY_PLAYERNUM) {
-					for (Integer enemyID : this.enemyFootmen) {
-						reward += death.getDeadUnitID() == enemyID ? 100 : 0;
-					}
+				if (this.digest.deadController(i) == ENEMY_PLAYERNUM) {
+					reward += this.enemyFootmen.contains(deadId) ? 100 : 0;
 				}
 			}
 		}
@@ -424,12 +1260,15 @@ public class RLAgent extends Agent {
 	 */
 	public double calcQValue(State.StateView stateView, History.HistoryView historyView, int attackerId,
 			int defenderId) {
-		double[] f = this.calculateFeatureVector(stateView, historyView, attackerId, defenderId);
-		double sum = 0;
-		for (int i = 0; i < f.length; i++) {
-			sum += f[i] * this.weights[i];
-		}
-		return sum;
+		return this.calcQValue(attackerId, defenderId);
+	}
+
+	/**
+	 * Extracts the features for an attacker and defender into the scratch
+	 * buffer and dots them with the weights. Does not allocate.
+	 */
+	private double calcQValue(int attackerId, int defenderId) {
+		return this.calcQValue(this.calculateFeatureVector(attackerId, defenderId, this.featureBuffer));
 	}
 
 	private double calcQValue(double[] features) {
@@ -464,28 +1303,43 @@ public class RLAgent extends Agent {
 	 */
 	public double[] calculateFeatureVector(State.StateView stateView, History.HistoryView historyView, int attackerId,
 			int defenderId) {
+		return this.calculateFeatureVector(attackerId, defenderId, new double[this.features.size()]);
+	}
 
-		double[] featureVector = new double[NUM_FEATURES];
+	/**
+	 * Fills the given array with the features for an attacker and defender.
+	 *
+	 * @param featureVector
+	 *            Array of at least features.size() entries to write into
+	 * @return featureVector, for chaining
+	 */
+	private double[] calculateFeatureVector(int attackerId, int defenderId, double[] featureVector) {
+		if (!this.features.isStandard()) {
+			return this.features.extract(this.units, this.battlefield.grid(), attackerId, defenderId, featureVector);
+		}
+		int attackerHP = this.units.hp(attackerId);
+		int defenderHP = this.units.hp(defenderId);
 
 		featureVector[0] = 1;
-		featureVector[1] = this.footmenHealth.get(attackerId);
-		featureVector[2] = this.footmenHealth.get(defenderId);
-		if (this.footmenHealth.get(attackerId) == 0) {
-			featureVector[3] = this.footmenHealth.get(defenderId) / .5d;
+		featureVector[1] = attackerHP;
+		featureVector[2] = defenderHP;
+		if (attackerHP == 0) {
+			featureVector[3] = defenderHP / .5d;
 		} else {
-			featureVector[3] = this.footmenHealth.get(defenderId) / this.footmenHealth.get(attackerId);
+			featureVector[3] = defenderHP / attackerHP;
 		}
 		featureVector[4] = isEnemyNextToMe(defenderId, attackerId) ? 0.5 : 0;
 		featureVector[5] = surroundingEnemies(defenderId);
 		return featureVector;
 	}
 
-	private Integer optimalEnemyToAttack(State.StateView state, History.HistoryView history, int attackerId) {
+	int optimalEnemyToAttack(State.StateView state, History.HistoryView history, int attackerId) {
 		int optimalEnemyID = this.enemyFootmen.get(0);
 		double optimalQVal = Double.NEGATIVE_INFINITY;
 
-		for (Integer enemy : this.enemyFootmen) {
-			double qVal = this.calcQValue(this.calculateFeatureVector(state, history, attackerId, enemy));
+		for (int i = 0; i < this.enemyFootmen.size(); i++) {
+			int enemy = this.enemyFootmen.get(i);
+			double qVal = this.calcQValue(attackerId, enemy);
 			if (qVal > optimalQVal) {
 				optimalEnemyID = enemy;
 				optimalQVal = qVal;
@@ -495,15 +1349,12 @@ public class RLAgent extends Agent {
 	}
 
 	private boolean isEnemyNextToMe(int myFootmenID, int enemyID) {
-		return this.footmenLocation.get(myFootmenID).isAdjacent(this.footmenLocation.get(enemyID));
+		return this.units.isAdjacent(myFootmenID, enemyID);
 	}
 
 	private int surroundingEnemies(int myFootmenID) {
-		int count = 0;
-		for (Integer enemyID : this.enemyFootmen) {
-			count += this.footmenLocation.get(myFootmenID).isAdjacent(this.footmenLocation.get(enemyID)) ? 1 : 0;
-		}
-		return count;
+		return this.battlefield.grid().countAdjacent(ENEMY_PLAYERNUM, this.units.x(myFootmenID),
+				this.units.y(myFootmenID));
 	}
 
 	/**
@@ -533,45 +1384,25 @@ public class RLAgent extends Agent {
 		System.out.println("");
 	}
 
-	public void saveTestData(List<Double> averageRewards) {
-		File path = new File("average_reward/averageReward.txt");
-		path.getAbsoluteFile().getParentFile().mkdirs();
-
-		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter(path, false));
-
-			writer.write("");
-			writer.write("Average Cumulative Reward \n");
-			writer.write("------------------------- \n");
-
-			for (int i = 0; i < averageRewards.size(); i++) {
-				String averageReward = String.format("%.2f", averageRewards.get(i));
-				writer.write(averageReward + "\n");
-			}
-			writer.flush();
-			writer.close();
-		} catch (IOException ex) {
-			System.err.println("Failed to write weights to file. Reason: " + ex.getMessage());
-		}
-	}
-
-	public void count(List<Double> averageRewards) {
-		File path = new File("average_reward/count.txt");
-		path.getAbsoluteFile().getParentFile().mkdirs();
-
-		try {
-			// open a new file writer. Set append to false
-			BufferedWriter writer = new BufferedWriter(new FileWriter(path, false));
+	/**
+	 * Same as printTestData, for a curve whose first entry is the given block
+	 * rather than block 0 and whose values are labelled by label.
+	 */
+	private void printTestData(List<Double> averageRewards, int firstBlock, String label) {
+		System.out.println("");
+		System.out.println("Games Played      " + label);
+		System.out.println("-------------     " + label.replaceAll(".", "-"));
+		for (int i = 0; i < averageRewards.size(); i++) {
+			String gamesPlayed = Integer.toString(10 * (firstBlock + i));
+			String averageReward = String.format("%.2f", averageRewards.get(i));
 
-			for (int i = 0; i < averageRewards.size(); i++) {
-				String gamesPlayed = Integer.toString(10 * i);
-				writer.write(gamesPlayed + "\n");
+			StringBuilder line = new StringBuilder(gamesPlayed);
+			while (line.length() < "-------------     ".length()) {
+				line.append(' ');
 			}
-			writer.flush();
-			writer.close();
-		} catch (IOException ex) {
-			System.err.println("Failed to write weights to file. Reason: " + ex.getMessage());
+			System.out.println(line.append(averageReward));
 		}
+		System.out.println("");
 	}
 
 	/**
@@ -587,7 +1418,7 @@ public class RLAgent extends Agent {
 	 * @param weights
 	 *            Array of weights
 	 */
-	public void saveWeights(Double[] weights) {
+	public void saveWeights(double[] weights) {
 		File path = new File("agent_weights/weights.txt");
 		// create the directories if they do not already exist
 		path.getAbsoluteFile().getParentFile().mkdirs();
@@ -614,31 +1445,55 @@ public class RLAgent extends Agent {
 	 * You will use this function if the load weights argument of the agent is
 	 * set to 1.
 	 *
+	 * If the binary checkpoint at CHECKPOINT_FILE is newer than the text file
+	 * it is loaded instead. Either file may hold either format.
+	 *
 	 * @return The array of weights
 	 */
-	public Double[] loadWeights() {
+	public double[] loadWeights() {
 		File path = new File("agent_weights/weights.txt");
+		File checkpoint = new File(CHECKPOINT_FILE);
+		if (checkpoint.exists() && (!path.exists() || checkpoint.lastModified() >= path.lastModified())) {
+			path = checkpoint;
+		}
 		if (!path.exists()) {
 			System.err.println("Failed to load weights. File does not exist");
 			return null;
 		}
 
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(path));
-			String line;
-			List<Double> weights = new LinkedList<>();
-			while ((line = reader.readLine()) != null) {
-				weights.add(Double.parseDouble(line));
-			}
-			reader.close();
-
-			return weights.toArray(new Double[weights.size()]);
+			return readWeights(path);
 		} catch (IOException ex) {
 			System.err.println("Failed to load weights from file. Reason: " + ex.getMessage());
 		}
 		return null;
 	}
 
+	/**
+	 * Reads a weights file in either the text format saveWeights writes or the
+	 * binary checkpoint format.
+	 */
+	static double[] readWeights(File path) throws IOException {
+		if (WeightCheckpointer.isCheckpoint(path)) {
+			return WeightCheckpointer.read(path);
+		}
+
+		BufferedReader reader = new BufferedReader(new FileReader(path));
+		String line;
+		List<Double> weights = new LinkedList<>();
+		while ((line = reader.readLine()) != null) {
+			weights.add(Double.parseDouble(line));
+		}
+		reader.close();
+
+		double[] loaded = new double[weights.size()];
+		int i = 0;
+		for (double weight : weights) {
+			loaded[i++] = weight;
+		}
+		return loaded;
+	}
+
 	@Override
 	public void savePlayerData(OutputStream outputStream) {
 
@@ -649,51 +1504,210 @@ public class RLAgent extends Agent {
 
 	}
 
-	private void exploitationCheck() {
-		this.isExploitating = (this.curEpisode % 10) > 5;
-
-		if (!this.isExploitating) {
-			if (this.meanR.size() <= this.qLearningSet) {
-				this.meanR.add(this.qLearningSet, new Double(0));
+	/**
+	 * Anytime version of the QMatrix decision. The matrix is prepared but not
+	 * refreshed, and every footman first gets a fallback target: its current
+	 * target if still alive, otherwise the nearest enemy by Chebyshev
+	 * distance. Finding the nearest enemy scans them all, so once the
+	 * deadline has passed the remaining footmen are spread over the enemies
+	 * in order instead. Rows are then refreshed one footman at a time until the
+	 * deadline passes. Footmen without a live target go first, then the rest
+	 * in an order that rotates between turns so each is refreshed regularly. A
+	 * row that was refreshed recently only recomputes the enemies that changed
+	 * since, so most refreshes cost far less than a full row, but a single
+	 * one can run past the deadline by up to the cost of one.
+	 *
+	 * Exploring footmen get a random enemy as in selectAction and are not
+	 * refreshed. Footmen whose row is not refreshed have no best Q-value for
+	 * replay, see orderedBestQ.
+	 */
+	private void assignWithinBudget(UnitSet attackers, long deadline) {
+		int count = attackers.size();
+		if (this.refineOrder.length < count) {
+			this.refineOrder = new int[Math.max(count, this.refineOrder.length * 2)];
+			this.keptOrder = new int[this.refineOrder.length];
+		}
+		this.qMatrix.prepare(attackers, this.enemyFootmen, this.units, this.battlefield.grid(), ENEMY_PLAYERNUM,
+				this.weights);
+
+		int guesses = 0;
+		int kept = 0;
+		for (int row = 0; row < count; row++) {
+			int footman = attackers.get(row);
+			int target;
+			if (random.nextDouble() >= (1 - this.epsilon)) {
+				target = this.enemyFootmen.get(random.nextInt(this.enemyFootmen.size()));
+				addOrder(footman, target, Double.NaN);
+				continue;
+			}
+			int previous = footman < this.currentTarget.length ? this.currentTarget[footman] : -1;
+			if (previous >= 0 && this.enemyFootmen.contains(previous)) {
+				target = previous;
+				this.keptOrder[kept++] = row;
+			} else {
+				target = System.nanoTime() < deadline ? nearestEnemy(footman)
+						: this.enemyFootmen.get(guesses % this.enemyFootmen.size());
+				this.refineOrder[guesses++] = row;
 			}
+			addOrder(footman, target, Double.NaN);
+		}
+		// kept footmen go after the guesses, starting where the last turn
+		// stopped
+		for (int i = 0; i < kept; i++) {
+			this.refineOrder[guesses + i] = this.keptOrder[(this.refineCursor + i) % kept];
+		}
+
+		int candidates = guesses + kept;
+		int refined = 0;
+		while (refined < candidates && System.nanoTime() < deadline) {
+			// rows and orders are both in attacker order
+			int row = this.refineOrder[refined++];
+			this.qMatrix.refresh(row);
+			this.currentTarget[attackers.get(row)] = this.qMatrix.bestDefender(row);
+			this.orderedBestQ[row] = this.qMatrix.bestQ(row);
+		}
+		if (kept > 0) {
+			this.refineCursor = (this.refineCursor + Math.max(0, refined - guesses)) % kept;
+		}
+
+		this.refinedLastTurn = refined;
+		this.fallbackLastTurn = candidates - refined;
+		if (this.metrics != null) {
+			this.metrics.recordAssignments(refined, candidates - refined);
 		}
 	}
 
-	private void updateBasedOnEvent(State.StateView state, History.HistoryView history) {
+	private int nearestEnemy(int footman) {
+		int x = this.units.x(footman);
+		int y = this.units.y(footman);
+		int nearest = this.enemyFootmen.get(0);
+		int nearestDistance = Integer.MAX_VALUE;
+		for (int i = 0; i < this.enemyFootmen.size(); i++) {
+			int enemy = this.enemyFootmen.get(i);
+			// Chebyshev distance, as Position.chebyshevDistance
+			int distance = Math.max(Math.abs(this.units.x(enemy) - x), Math.abs(this.units.y(enemy) - y));
+			if (distance < nearestDistance) {
+				nearest = enemy;
+				nearestDistance = distance;
+			}
+		}
+		return nearest;
+	}
 
-		for (Unit.UnitView unit : state.getAllUnits()) {
-			this.footmenHealth.put(unit.getID(), unit.getHP());
-			this.footmenLocation.put(unit.getID(), new Position(unit.getXPosition(), unit.getYPosition()));
+	/**
+	 * Records an attack order for the footman, to be returned by assignAction
+	 * and learned from in middleStep.
+	 */
+	private void addOrder(int footman, int target, double bestQ) {
+		int index = this.ordered.size();
+		this.ordered.add(footman);
+		if (index >= this.orderedBestQ.length) {
+			this.orderedBestQ = Arrays.copyOf(this.orderedBestQ, this.orderedBestQ.length * 2);
 		}
+		this.orderedBestQ[index] = bestQ;
+		if (footman >= this.currentTarget.length) {
+			int oldLength = this.currentTarget.length;
+			this.currentTarget = Arrays.copyOf(this.currentTarget, Math.max(footman + 1, oldLength * 2));
+			Arrays.fill(this.currentTarget, oldLength, this.currentTarget.length, -1);
+		}
+		this.currentTarget[footman] = target;
+	}
 
-		if (state.getTurnNumber() <= 0) {
-			eventOccured = true;
-			return;
-		} else if (history.getDeathLogs(state.getTurnNumber() - 1).size() > 0) {
-			eventOccured = true;
+	private void setStaleQValue(int footmanId, double qValue) {
+		if (footmanId >= this.staleQValue.length) {
+			this.staleQValue = Arrays.copyOf(this.staleQValue, Math.max(footmanId + 1, this.staleQValue.length * 2));
 		}
-		for (DeathLog death : history.getDeathLogs(state.getTurnNumber() - 1)) {
-			if (death.getController() == ENEMY_PLAYERNUM) {
-				this.enemyFootmen.remove(enemyFootmen.indexOf(death.getDeadUnitID()));
-			} else if (death.getController() == this.playernum) {
-				this.myFootmen.remove(myFootmen.indexOf(death.getDeadUnitID()));
+		this.staleQValue[footmanId] = qValue;
+	}
+
+	private void exploitationCheck() {
+		this.isExploitating = this.evaluationOnly || (this.evaluator == null && (this.curEpisode % 10) > 5);
+
+		if (isInterleaved() && !this.isExploitating) {
+			if (this.meanR.size() <= this.qLearningSet - this.curveOffset) {
+				this.meanR.addLast(0.0);
 			}
 		}
-		for (DamageLog damage : history.getDamageLogs(state.getTurnNumber() - 1)) {
-			if (damage.getDefenderController() == playernum) {
-				eventOccured = true;
-				return;
-			}
+	}
+
+	/**
+	 * @return true if learning and evaluation episodes share this agent's
+	 *         schedule
+	 */
+	private boolean isInterleaved() {
+		return this.evaluator == null && !this.evaluationOnly;
+	}
+
+	private void publishSnapshot() {
+		this.evaluator.submit(new PolicySnapshot(this.weights, this.publishedBlocks));
+		this.publishedBlocks++;
+	}
+
+	private void appendEvaluations(List<Double> averages) {
+		for (Double average : averages) {
+			this.meanR.addLast(average);
+			finishBlock(this.evaluatedBlocks);
+			this.evaluatedBlocks++;
 		}
-		eventOccured = false;
+	}
+
+	/**
+	 * Logs a finished block, which is the last one in meanR, and drops the
+	 * oldest block from memory once the window is full.
+	 */
+	private void finishBlock(int block) {
+		if (this.curveLog != null) {
+			this.curveLog.append(block, this.meanR.peekLast());
+		}
+		while (this.meanR.size() >= CURVE_WINDOW) {
+			this.meanR.removeFirst();
+			this.curveOffset++;
+		}
+	}
+
+	private void updateBasedOnEvent(State.StateView state, History.HistoryView history) {
+		this.eventOccured = this.battlefield.update(state, history);
 	}
 
 	private Map<Integer, Action> assignAction(State.StateView state, History.HistoryView history,
-			List<Integer> myFootmen) {
+			UnitSet myFootmen, long deadline) {
 		HashMap<Integer, Action> actionPairs = new HashMap<Integer, Action>();
+		this.ordered.clear();
+		if (this.enemyFootmen.isEmpty()) {
+			return actionPairs;
+		}
+		long start = this.metrics != null ? System.nanoTime() : 0;
 
-		for (Integer footman : myFootmen) {
-			actionPairs.put(footman, Action.createCompoundAttack(footman, this.selectAction(state, history, footman)));
+		if (this.decisionBudgetNanos > 0) {
+			assignWithinBudget(myFootmen, deadline);
+		} else {
+			this.qMatrix.evaluate(myFootmen, this.enemyFootmen, this.units, this.battlefield.grid(),
+					ENEMY_PLAYERNUM, this.weights);
+			for (int row = 0; row < this.qMatrix.attackerCount(); row++) {
+				addOrder(this.qMatrix.attackerId(row), this.selectAction(row), this.qMatrix.bestQ(row));
+			}
+		}
+		int suppressed = 0;
+		for (int i = 0; i < this.ordered.size(); i++) {
+			int footman = this.ordered.get(i);
+			int target = this.currentTarget[footman];
+			if (footman >= this.issuedTarget.length) {
+				int oldLength = this.issuedTarget.length;
+				this.issuedTarget = Arrays.copyOf(this.issuedTarget, Math.max(footman + 1, oldLength * 2));
+				Arrays.fill(this.issuedTarget, oldLength, this.issuedTarget.length, -1);
+			}
+			if (this.actionDiffing && this.issuedTarget[footman] == target && !this.digest.completed().contains(footman)
+					&& !this.digest.failed().contains(footman)) {
+				suppressed++;
+				continue;
+			}
+			actionPairs.put(footman, Action.createCompoundAttack(footman, target));
+			this.issuedTarget[footman] = target;
+		}
+		this.suppressedLastTurn = suppressed;
+		if (this.metrics != null) {
+			this.metrics.recordAssignAction(System.nanoTime() - start);
+			this.metrics.recordSuppressedCommands(suppressed);
 		}
 
 		return actionPairs;
@@ -0,0 +1,275 @@
+package edu.cwru.sepia.agent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Random;
+
+/**
+ * Fixed capacity ring of past transitions kept outside the Java heap, so
+ * every transition can be learned from more than once without creating
+ * garbage.
+ *
+ * Each transition is the feature vector of the attack a footman was given,
+ * the reward that followed and the highest Q-value available to that footman
+ * at the next event (0 if the episode ended). Replaying a transition moves
+ * the weights toward reward + gamma * nextMaxQ, the same target the online
+ * update in RLAgent uses.
+ *
+ * Sampling is uniform, or proportional to the last TD error of each
+ * transition when a priority exponent is given. Priorities live in a sum
+ * tree, also off-heap, so sampling and updating a priority are O(log n).
+ * Once full the oldest transition is overwritten.
+ */
+public class ReplayBuffer {
+
+	/**
+	 * Added to every TD error so no transition gets zero priority.
+	 */
+	private static final double MIN_PRIORITY = 1e-3;
+
+	private final int capacity;
+	private final int numFeatures;
+	private final int stride;
+	private final double alpha;
+	private final double beta;
+
+	/**
+	 * capacity records of numFeatures features, reward, nextMaxQ.
+	 */
+	private final DoubleBuffer transitions;
+	/**
+	 * Sum tree over the priorities. Leaves start at leafOffset, node i has
+	 * children 2i and 2i + 1, node 1 holds the total.
+	 */
+	private final DoubleBuffer priorities;
+	private final int leafOffset;
+	private double maxPriority = 1;
+
+	private int next;
+	private int size;
+
+	private int[] batch = new int[0];
+	private double[] batchWeights = new double[0];
+	private final double[] gradient;
+
+	/**
+	 * Creates a buffer that samples uniformly.
+	 *
+	 * @param capacity
+	 *            Number of transitions kept
+	 * @param numFeatures
+	 *            Length of each feature vector
+	 */
+	public ReplayBuffer(int capacity, int numFeatures) {
+		this(capacity, numFeatures, 0, 0);
+	}
+
+	/**
+	 * @param capacity
+	 *            Number of transitions kept
+	 * @param numFeatures
+	 *            Length of each feature vector
+	 * @param alpha
+	 *            Priority exponent. 0 samples uniformly, 1 samples in
+	 *            proportion to the TD error.
+	 * @param beta
+	 *            Importance sampling exponent correcting the bias of
+	 *            prioritized sampling. 0 applies no correction, 1 corrects
+	 *            fully. Ignored when alpha is 0.
+	 */
+	public ReplayBuffer(int capacity, int numFeatures, double alpha, double beta) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Replay capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.numFeatures = numFeatures;
+		this.stride = numFeatures + 2;
+		this.alpha = alpha;
+		this.beta = beta;
+		this.transitions = allocate(capacity * stride);
+
+		int leaves = Integer.highestOneBit(capacity);
+		if (leaves < capacity) {
+			leaves *= 2;
+		}
+		this.leafOffset = leaves;
+		this.priorities = allocate(alpha > 0 ? 2 * leaves : 0);
+		this.gradient = new double[numFeatures];
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int numFeatures() {
+		return numFeatures;
+	}
+
+	public boolean isPrioritized() {
+		return alpha > 0;
+	}
+
+	/**
+	 * Stores a transition, overwriting the oldest one once the buffer is full.
+	 * New transitions get the highest priority seen so far so each is sampled
+	 * at least once soon after it is added.
+	 *
+	 * @param features
+	 *            Features of the attack that was chosen. Copied.
+	 * @param reward
+	 *            Reward received until the next event
+	 * @param nextMaxQ
+	 *            Best Q-value at the next event, 0 if the episode ended
+	 */
+	public void add(double[] features, double reward, double nextMaxQ) {
+		add(features, 0, reward, nextMaxQ);
+	}
+
+	/**
+	 * Stores a transition whose features start at the given offset of the
+	 * array.
+	 */
+	public void add(double[] features, int offset, double reward, double nextMaxQ) {
+		int base = next * stride;
+		for (int i = 0; i < numFeatures; i++) {
+			transitions.put(base + i, features[offset + i]);
+		}
+		transitions.put(base + numFeatures, reward);
+		transitions.put(base + numFeatures + 1, nextMaxQ);
+		if (isPrioritized()) {
+			setPriority(next, maxPriority);
+		}
+
+		next = (next + 1) % capacity;
+		if (size < capacity) {
+			size++;
+		}
+	}
+
+	/**
+	 * Samples a minibatch and takes one gradient step on the weights with the
+	 * mean TD error of the batch. Does nothing while the buffer holds fewer
+	 * transitions than the batch size.
+	 *
+	 * @param weights
+	 *            Weights to update in place
+	 * @param batchSize
+	 *            Number of transitions to sample
+	 * @param learningRate
+	 *            Step size
+	 * @param gamma
+	 *            Discount applied to nextMaxQ
+	 * @param random
+	 *            Source of the samples
+	 * @return Mean absolute TD error of the batch, or 0 if nothing was
+	 *         replayed
+	 */
+	public double train(double[] weights, int batchSize, double learningRate, double gamma, Random random) {
+		if (batchSize <= 0 || size < batchSize) {
+			return 0;
+		}
+		sample(batchSize, random);
+
+		for (int i = 0; i < numFeatures; i++) {
+			gradient[i] = 0;
+		}
+		double totalError = 0;
+		for (int b = 0; b < batchSize; b++) {
+			int base = batch[b] * stride;
+			double q = 0;
+			for (int i = 0; i < numFeatures; i++) {
+				q += transitions.get(base + i) * weights[i];
+			}
+			double target = transitions.get(base + numFeatures) + gamma * transitions.get(base + numFeatures + 1);
+			double error = target - q;
+			double scale = batchWeights[b] * error;
+			for (int i = 0; i < numFeatures; i++) {
+				gradient[i] += scale * transitions.get(base + i);
+			}
+			totalError += Math.abs(error);
+			if (isPrioritized()) {
+				double priority = Math.pow(Math.abs(error) + MIN_PRIORITY, alpha);
+				maxPriority = Math.max(maxPriority, priority);
+				setPriority(batch[b], priority);
+			}
+		}
+
+		for (int i = 0; i < numFeatures; i++) {
+			weights[i] += learningRate * gradient[i] / batchSize;
+		}
+		return totalError / batchSize;
+	}
+
+	/**
+	 * Fills batch with transition indices and batchWeights with their
+	 * importance sampling weights.
+	 */
+	private void sample(int batchSize, Random random) {
+		if (batch.length < batchSize) {
+			batch = new int[batchSize];
+			batchWeights = new double[batchSize];
+		}
+
+		if (!isPrioritized()) {
+			for (int b = 0; b < batchSize; b++) {
+				batch[b] = random.nextInt(size);
+				batchWeights[b] = 1;
+			}
+			return;
+		}
+
+		// stratified: one sample from each of batchSize equal slices of the
+		// total priority
+		double total = priorities.get(1);
+		double segment = total / batchSize;
+		double maxWeight = 0;
+		for (int b = 0; b < batchSize; b++) {
+			int index = find((b + random.nextDouble()) * segment);
+			double probability = priorities.get(leafOffset + index) / total;
+			batch[b] = index;
+			batchWeights[b] = Math.pow(size * probability, -beta);
+			maxWeight = Math.max(maxWeight, batchWeights[b]);
+		}
+		for (int b = 0; b < batchSize; b++) {
+			batchWeights[b] /= maxWeight;
+		}
+	}
+
+	/**
+	 * @return Index of the transition whose priority range contains the given
+	 *         point of the cumulative priority
+	 */
+	private int find(double point) {
+		int node = 1;
+		while (node < leafOffset) {
+			double left = priorities.get(2 * node);
+			if (point < left) {
+				node = 2 * node;
+			} else {
+				point -= left;
+				node = 2 * node + 1;
+			}
+		}
+		// rounding can walk past the last stored transition
+		return Math.min(node - leafOffset, size - 1);
+	}
+
+	private void setPriority(int index, double priority) {
+		int node = leafOffset + index;
+		priorities.put(node, priority);
+		// recompute the sums rather than adding the difference so rounding
+		// errors do not build up over millions of updates
+		for (node /= 2; node >= 1; node /= 2) {
+			priorities.put(node, priorities.get(2 * node) + priorities.get(2 * node + 1));
+		}
+	}
+
+	private static DoubleBuffer allocate(int doubles) {
+		return ByteBuffer.allocateDirect(8 * doubles).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+}
@@ -0,0 +1,273 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import edu.cwru.sepia.environment.model.persistence.generated.XmlPlayer;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlState;
+import edu.cwru.sepia.environment.model.persistence.generated.XmlUnit;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.environment.model.state.XmlStateCreator;
+
+/**
+ * Writes SEPIA maps and configs for battles of any size, so the agent can be
+ * trained and measured on more than the two shipped maps.
+ *
+ * A scenario starts from a base map, data/rl_5fv5f.xml by default, and keeps
+ * its players, unit templates and footman stats. Only the map size and the
+ * footmen change. Player 0's footmen stand on the left of the map facing
+ * player 1's on the right, FRONT_GAP columns apart like in the shipped maps.
+ *
+ * LINE spaces each column of footmen one row apart, as in the shipped maps.
+ * BLOCK packs them into solid columns. SCATTER places them at random in their
+ * own third of the map.
+ *
+ * The config written next to the map is the base config, data/5fv5fConfig.xml
+ * by default, pointing at the new map.
+ */
+public class ScenarioGenerator {
+
+	public enum Formation {
+		LINE, BLOCK, SCATTER
+	}
+
+	public static final String DEFAULT_BASE_MAP = "data/rl_5fv5f.xml";
+	public static final String DEFAULT_BASE_CONFIG = "data/5fv5fConfig.xml";
+	public static final int FRONT_GAP = 10;
+	public static final int MIN_WIDTH = 25;
+	public static final int MIN_HEIGHT = 19;
+
+	private final XmlState base;
+	private final String baseConfig;
+
+	/**
+	 * @param baseMapFile
+	 *            Map whose players and templates every scenario uses. Each
+	 *            player must have at least one footman.
+	 * @param baseConfigFile
+	 *            Config every scenario's config is copied from
+	 */
+	public ScenarioGenerator(String baseMapFile, String baseConfigFile) throws IOException {
+		this.base = readState(new File(baseMapFile));
+		this.baseConfig = new String(Files.readAllBytes(new File(baseConfigFile).toPath()), StandardCharsets.UTF_8);
+		footmanOf(base, 0);
+		footmanOf(base, RLAgent.ENEMY_PLAYERNUM);
+	}
+
+	public ScenarioGenerator() throws IOException {
+		this(DEFAULT_BASE_MAP, DEFAULT_BASE_CONFIG);
+	}
+
+	/**
+	 * Builds a scenario in memory.
+	 *
+	 * @param myFootmen
+	 *            Footmen of player 0
+	 * @param enemyFootmen
+	 *            Footmen of player 1
+	 * @param formation
+	 *            How each side's footmen are arranged
+	 * @param width
+	 *            Map width, or 0 to fit the footmen
+	 * @param height
+	 *            Map height, or 0 to fit the footmen
+	 * @param seed
+	 *            Seed for SCATTER placement, ignored by the other formations
+	 * @return The map in SEPIA's XML model
+	 */
+	public XmlState generate(int myFootmen, int enemyFootmen, Formation formation, int width, int height, long seed) {
+		if (myFootmen < 1 || enemyFootmen < 1) {
+			throw new IllegalArgumentException("Each side needs at least one footman");
+		}
+		int larger = Math.max(myFootmen, enemyFootmen);
+		if (height <= 0) {
+			height = Math.max(MIN_HEIGHT, 2 * (int) Math.ceil(Math.sqrt(larger)) + 2);
+		}
+		if (width <= 0) {
+			// every formation fits in the columns LINE needs
+			width = Math.max(MIN_WIDTH, 2 * columnsNeeded(larger, (height - 1) / 2) + FRONT_GAP + 4);
+		}
+
+		SplittableRandom random = new SplittableRandom(seed);
+		int center = width / 2;
+		List<int[]> mine = cells(formation, myFootmen, center - FRONT_GAP / 2, -1, width, height, random);
+		List<int[]> theirs = cells(formation, enemyFootmen, center + (FRONT_GAP + 1) / 2, 1, width, height, random);
+
+		XmlState state = new XmlState();
+		state.setXExtent(width);
+		state.setYExtent(height);
+		state.setNextTemplateID(base.getNextTemplateID());
+		state.setFogOfWar(base.isFogOfWar());
+		state.setRevealedResourceNodes(base.isRevealedResourceNodes());
+
+		int nextId = 0;
+		for (XmlPlayer basePlayer : base.getPlayer()) {
+			XmlPlayer player = new XmlPlayer();
+			player.setID(basePlayer.getID());
+			player.setSupply(basePlayer.getSupply());
+			player.setSupplyCap(basePlayer.getSupplyCap());
+			player.getTemplate().addAll(basePlayer.getTemplate());
+			player.getUpgrade().addAll(basePlayer.getUpgrade());
+			player.getResourceAmount().addAll(basePlayer.getResourceAmount());
+
+			List<int[]> positions = basePlayer.getID() == 0 ? mine
+					: basePlayer.getID() == RLAgent.ENEMY_PLAYERNUM ? theirs : new ArrayList<int[]>();
+			if (!positions.isEmpty()) {
+				XmlUnit template = footmanOf(base, basePlayer.getID());
+				for (int[] position : positions) {
+					XmlUnit unit = new XmlUnit();
+					unit.setID(nextId++);
+					unit.setCurrentHealth(template.getCurrentHealth());
+					unit.setTemplateID(template.getTemplateID());
+					unit.setXPosition(position[0]);
+					unit.setYPosition(position[1]);
+					player.getUnit().add(unit);
+				}
+			}
+			state.getPlayer().add(player);
+		}
+		state.setNextTargetID(nextId);
+		return state;
+	}
+
+	/**
+	 * @return A creator for the scenario, as EpisodeRunner.loadMap would
+	 *         return for the written file
+	 */
+	public StateCreator creator(int myFootmen, int enemyFootmen, Formation formation, long seed) {
+		return new XmlStateCreator(generate(myFootmen, enemyFootmen, formation, 0, 0, seed));
+	}
+
+	/**
+	 * Writes rl_NfvMf.xml and NfvMfConfig.xml into a directory, named like the
+	 * shipped files.
+	 *
+	 * @return The map file
+	 */
+	public File write(File directory, int myFootmen, int enemyFootmen, Formation formation, int width, int height,
+			long seed) throws IOException {
+		String name = myFootmen + "fv" + enemyFootmen + "f";
+		File mapFile = new File(directory, "rl_" + name + ".xml");
+		File configFile = new File(directory, name + "Config.xml");
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create directory " + directory);
+		}
+
+		XmlState state = generate(myFootmen, enemyFootmen, formation, width, height, seed);
+		try {
+			Marshaller marshaller = JAXBContext.newInstance(XmlState.class).createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+			marshaller.marshal(state, mapFile);
+		} catch (JAXBException ex) {
+			throw new IOException("Failed to write map " + mapFile + ". Reason: " + ex.getMessage(), ex);
+		}
+
+		String config = baseConfig.replaceFirst("<Map>[^<]*</Map>", "<Map>" + mapFile.getPath().replace('\\', '/')
+				+ "</Map>");
+		Files.write(configFile.toPath(), config.getBytes(StandardCharsets.UTF_8));
+		return mapFile;
+	}
+
+	/**
+	 * Positions for one side's footmen, nearest the front first.
+	 *
+	 * @param front
+	 *            Column of the side's front line
+	 * @param direction
+	 *            -1 if the side extends to the left of its front, 1 if to the
+	 *            right
+	 */
+	private static List<int[]> cells(Formation formation, int count, int front, int direction, int width, int height,
+			SplittableRandom random) {
+		List<int[]> cells = new ArrayList<int[]>();
+		int limit = direction < 0 ? front + 1 : width - front;
+		if (formation == Formation.SCATTER) {
+			// every cell in the side's third of the map, then a partial
+			// Fisher-Yates shuffle to pick count of them
+			int depth = Math.max(1, Math.min(limit, width / 3));
+			for (int column = 0; column < depth; column++) {
+				for (int y = 0; y < height; y++) {
+					cells.add(new int[] { front + direction * column, y });
+				}
+			}
+			if (cells.size() < count) {
+				throw new IllegalArgumentException(count + " footmen do not fit in a " + width + "x" + height + " map");
+			}
+			for (int i = 0; i < count; i++) {
+				int pick = i + random.nextInt(cells.size() - i);
+				int[] swap = cells.get(i);
+				cells.set(i, cells.get(pick));
+				cells.set(pick, swap);
+			}
+			return new ArrayList<int[]>(cells.subList(0, count));
+		}
+
+		int step = formation == Formation.LINE ? 2 : 1;
+		int perColumn = (height - 2 + step - 1) / step;
+		if (columnsNeeded(count, perColumn) > limit) {
+			throw new IllegalArgumentException(count + " footmen do not fit in a " + width + "x" + height + " map");
+		}
+		for (int i = 0; i < count; i++) {
+			int column = i / perColumn;
+			int row = i % perColumn;
+			// center each column vertically
+			int rows = Math.min(perColumn, count - column * perColumn);
+			int top = (height - 1 - (rows - 1) * step) / 2;
+			cells.add(new int[] { front + direction * column, top + row * step });
+		}
+		return cells;
+	}
+
+	private static int columnsNeeded(int count, int perColumn) {
+		return (count + perColumn - 1) / Math.max(1, perColumn);
+	}
+
+	private static XmlUnit footmanOf(XmlState state, int playerId) {
+		for (XmlPlayer player : state.getPlayer()) {
+			if (player.getID() == playerId && !player.getUnit().isEmpty()) {
+				return player.getUnit().get(0);
+			}
+		}
+		throw new IllegalArgumentException("Base map has no footman for player " + playerId);
+	}
+
+	private static XmlState readState(File mapFile) throws IOException {
+		try {
+			return (XmlState) JAXBContext.newInstance(XmlState.class).createUnmarshaller().unmarshal(mapFile);
+		} catch (JAXBException ex) {
+			throw new IOException("Failed to parse map " + mapFile + ". Reason: " + ex.getMessage(), ex);
+		}
+	}
+
+	/**
+	 * Usage: ScenarioGenerator myFootmen enemyFootmen [formation] [width
+	 * height] [seed] [directory]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println(
+					"Usage: ScenarioGenerator myFootmen enemyFootmen [LINE|BLOCK|SCATTER] [width height] [seed] [directory]");
+			return;
+		}
+		int myFootmen = Integer.parseInt(args[0]);
+		int enemyFootmen = Integer.parseInt(args[1]);
+		Formation formation = args.length >= 3 ? Formation.valueOf(args[2].toUpperCase()) : Formation.LINE;
+		int width = args.length >= 5 ? Integer.parseInt(args[3]) : 0;
+		int height = args.length >= 5 ? Integer.parseInt(args[4]) : 0;
+		long seed = args.length >= 6 ? Long.parseLong(args[5]) : 0;
+		File directory = new File(args.length >= 7 ? args[6] : "data");
+
+		File mapFile = new ScenarioGenerator().write(directory, myFootmen, enemyFootmen, formation, width, height,
+				seed);
+		System.out.println("Wrote " + mapFile);
+	}
+}
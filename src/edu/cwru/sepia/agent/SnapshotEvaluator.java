@@ -0,0 +1,236 @@
+package edu.cwru.sepia.agent;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Plays the evaluation episodes of a training run on other threads, so the
+ * training agent can spend every episode learning. The trainer submits a
+ * PolicySnapshot at each evaluation point and keeps going. Each snapshot is
+ * played gamesPerSnapshot times, spread over the pool, by an RLAgent that
+ * neither learns nor changes the snapshot.
+ *
+ * Results come back through poll and drain in the order the snapshots were
+ * submitted, whichever finishes first, so they can be appended to a learning
+ * curve as if the evaluation episodes had run in line.
+ *
+ * Every pool thread keeps its own map, evaluation agent and enemy for all of
+ * its games. The evaluation agents build their features with the factory the
+ * evaluator was given, so they score with the same features as the trainer.
+ */
+public class SnapshotEvaluator {
+
+	/**
+	 * Evaluation episodes in each block of 10 of the interleaved schedule.
+	 */
+	public static final int DEFAULT_GAMES_PER_SNAPSHOT = 4;
+
+	private final String mapFile;
+	private final String enemyAgentClass;
+	private final int gamesPerSnapshot;
+	private final int seed;
+	private final FeatureExtractor.Factory features;
+	private final ExecutorService executor;
+	private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+
+	/**
+	 * Snapshots submitted but not yet returned, oldest first. Only touched by
+	 * the submitting thread.
+	 */
+	private final Deque<List<Future<Double>>> pending = new ArrayDeque<List<Future<Double>>>();
+	private final AtomicInteger gamesPlayed = new AtomicInteger();
+	private final AtomicInteger gamesWon = new AtomicInteger();
+	private int submitted = 0;
+
+	/**
+	 * @param mapFile
+	 *            SEPIA state XML to evaluate on, normally the training map
+	 * @param enemyAgentClass
+	 *            Agent class controlling the enemy player
+	 * @param gamesPerSnapshot
+	 *            Games played with every snapshot
+	 * @param threads
+	 *            Number of evaluation games to run at once
+	 * @param seed
+	 *            Seed of the first game's model. Each game after that uses the
+	 *            next seed.
+	 * @param features
+	 *            Features the snapshots' weights go with. Snapshots with a
+	 *            different number of weights fail.
+	 */
+	public SnapshotEvaluator(String mapFile, String enemyAgentClass, int gamesPerSnapshot, int threads, int seed,
+			FeatureExtractor.Factory features) {
+		if (gamesPerSnapshot < 1 || threads < 1) {
+			throw new IllegalArgumentException("gamesPerSnapshot and threads must be at least 1");
+		}
+		if (features == null) {
+			throw new IllegalArgumentException("Features set without a factory cannot be evaluated");
+		}
+		this.mapFile = mapFile;
+		this.enemyAgentClass = enemyAgentClass;
+		this.gamesPerSnapshot = gamesPerSnapshot;
+		this.seed = seed;
+		this.features = features;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "evaluation-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public SnapshotEvaluator(String mapFile, String enemyAgentClass, int gamesPerSnapshot, int threads, int seed) {
+		this(mapFile, enemyAgentClass, gamesPerSnapshot, threads, seed, FeatureExtractor.STANDARD);
+	}
+
+	public SnapshotEvaluator(String mapFile, int threads) {
+		this(mapFile, TrainingRunner.DEFAULT_ENEMY_AGENT, DEFAULT_GAMES_PER_SNAPSHOT, threads, 0);
+	}
+
+	/**
+	 * Queues gamesPerSnapshot games with the given weights. Returns at once.
+	 */
+	public void submit(final PolicySnapshot snapshot) {
+		List<Future<Double>> games = new ArrayList<Future<Double>>(gamesPerSnapshot);
+		for (int i = 0; i < gamesPerSnapshot; i++) {
+			final int gameSeed = seed + submitted * gamesPerSnapshot + i;
+			games.add(executor.submit(new Callable<Double>() {
+				public Double call() throws IOException {
+					return worker().play(snapshot, gameSeed);
+				}
+			}));
+		}
+		pending.addLast(games);
+		submitted++;
+	}
+
+	/**
+	 * Returns the results that are ready without waiting.
+	 *
+	 * @return Average episode reward of each finished snapshot, in submission
+	 *         order. Stops at the first snapshot still being played.
+	 */
+	public List<Double> poll() {
+		List<Double> results = new ArrayList<Double>();
+		while (!pending.isEmpty() && isDone(pending.peekFirst())) {
+			results.add(average(pending.pollFirst()));
+		}
+		return results;
+	}
+
+	/**
+	 * Waits for every submitted snapshot.
+	 *
+	 * @return Average episode reward of each snapshot not returned yet, in
+	 *         submission order
+	 */
+	public List<Double> drain() {
+		List<Double> results = new ArrayList<Double>();
+		while (!pending.isEmpty()) {
+			results.add(average(pending.pollFirst()));
+		}
+		return results;
+	}
+
+	/**
+	 * @return Number of snapshots submitted and not yet returned
+	 */
+	public int pendingSnapshots() {
+		return pending.size();
+	}
+
+	public int getGamesPlayed() {
+		return gamesPlayed.get();
+	}
+
+	public int getGamesWon() {
+		return gamesWon.get();
+	}
+
+	/**
+	 * Stops the pool. Games still queued are dropped.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static boolean isDone(List<Future<Double>> games) {
+		for (Future<Double> game : games) {
+			if (!game.isDone()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static double average(List<Future<Double>> games) {
+		double sum = 0;
+		try {
+			for (Future<Double> game : games) {
+				sum += game.get();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for evaluation games", ex);
+		} catch (ExecutionException ex) {
+			throw new IllegalStateException("Evaluation game failed", ex.getCause());
+		}
+		return sum / games.size();
+	}
+
+	private Worker worker() throws IOException {
+		Worker worker = workers.get();
+		if (worker == null) {
+			worker = new Worker();
+			workers.set(worker);
+		}
+		return worker;
+	}
+
+	/**
+	 * One pool thread's map and agents.
+	 */
+	private class Worker {
+		final StateCreator map;
+		final RLAgent agent;
+		final Agent enemy;
+
+		Worker() throws IOException {
+			this.map = EpisodeRunner.loadMap(mapFile);
+			this.agent = new RLAgent(0, Integer.MAX_VALUE, null);
+			this.agent.setHeadless(true);
+			this.agent.setEvaluationOnly(true);
+			this.agent.setFeatureFactory(features);
+			this.enemy = EpisodeRunner.createAgent(enemyAgentClass, RLAgent.ENEMY_PLAYERNUM);
+		}
+
+		double play(PolicySnapshot snapshot, int gameSeed) {
+			// getWeights copies, so the snapshot stays frozen. Throws if the
+			// weights do not go with the features.
+			agent.useWeights(snapshot.getWeights());
+			agent.random.setSeed(gameSeed);
+			int won = agent.getGamesWon();
+			new EpisodeRunner(map, new Agent[] { agent, enemy }, gameSeed).runEpisode();
+			gamesPlayed.incrementAndGet();
+			if (agent.getGamesWon() > won) {
+				gamesWon.incrementAndGet();
+			}
+			return agent.getLastEpisodeReward();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Locale;
+
+/**
+ * Outcome of one configuration of a HyperparameterSweep.
+ */
+public class SweepResult {
+
+	/**
+	 * Position of the configuration in the list given to the sweep.
+	 */
+	public final int index;
+	public final Hyperparameters hyperparameters;
+
+	/**
+	 * Seed of the agent's exploration, drawn from the configuration's
+	 * SplittableRandom stream.
+	 */
+	public final long seed;
+
+	/**
+	 * Weights, learning curve and counts up to the episode the configuration
+	 * finished or was stopped at.
+	 */
+	public final TrainingResult training;
+
+	/**
+	 * Fraction of games won since the last rung the configuration reached, or
+	 * over the whole run if early stopping was off.
+	 */
+	public final double score;
+
+	/**
+	 * True if the configuration was stopped early because its learning curve
+	 * was dominated.
+	 */
+	public final boolean stopped;
+
+	public SweepResult(int index, Hyperparameters hyperparameters, long seed, TrainingResult training, double score,
+			boolean stopped) {
+		this.index = index;
+		this.hyperparameters = hyperparameters;
+		this.seed = seed;
+		this.training = training;
+		this.score = score;
+		this.stopped = stopped;
+	}
+
+	/**
+	 * @return Last value of the learning curve, or NaN if it is empty.
+	 */
+	public double finalReward() {
+		return training.learningCurve.isEmpty() ? Double.NaN
+				: training.learningCurve.get(training.learningCurve.size() - 1);
+	}
+
+	/**
+	 * @return human readable summary.
+	 */
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "#%d %s: score %.3f, %s%s", index, hyperparameters, score, training,
+				stopped ? ", stopped" : "");
+	}
+}
@@ -0,0 +1,273 @@
+package edu.cwru.sepia.agent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms describing a training run. Every record
+ * method is lock-free and can be called from any number of game threads, so
+ * one instance can collect the metrics of all ParallelTrainer workers.
+ *
+ * Read it through JMX (see register) or have a MetricsCsvSink write it to a
+ * file periodically.
+ *
+ * Allocation is the bytes the game thread allocates inside middleStep, read
+ * from the JVM's per-thread counter (com.sun.management.ThreadMXBean). On a
+ * JVM without that counter it is not recorded and reads as -1.
+ */
+public class TrainingMetrics implements TrainingMetricsMBean {
+
+	public static final String DEFAULT_OBJECT_NAME = "edu.cwru.sepia.agent:type=TrainingMetrics";
+
+	private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+	private final long startNanos = System.nanoTime();
+
+	private final LongAdder episodes = new LongAdder();
+	private final LongAdder turns = new LongAdder();
+	private final LongAdder wins = new LongAdder();
+	private final DoubleAdder episodeReward = new DoubleAdder();
+	private volatile double lastEpisodeReward;
+
+	private final LongAdder allocatedBytes = new LongAdder();
+	private final LongAdder allocationTurns = new LongAdder();
+
+	private final LongAdder weightUpdates = new LongAdder();
+	private final DoubleAdder absTdError = new DoubleAdder();
+
+	private final LongAdder refinedAssignments = new LongAdder();
+	private final LongAdder fallbackAssignments = new LongAdder();
+	private final LongAdder suppressedCommands = new LongAdder();
+
+	private final LatencyHistogram middleStep = new LatencyHistogram();
+	private final LatencyHistogram assignAction = new LatencyHistogram();
+
+	/**
+	 * Registers these metrics with the platform MBean server so they show up
+	 * in jconsole or any other JMX client.
+	 *
+	 * @param objectName
+	 *            JMX name, for example DEFAULT_OBJECT_NAME
+	 * @return true if registered, false if the name is taken or invalid
+	 */
+	public boolean register(String objectName) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, new ObjectName(objectName));
+			return true;
+		} catch (JMException ex) {
+			System.err.println("Failed to register training metrics. Reason: " + ex.getMessage());
+			return false;
+		}
+	}
+
+	public void recordEpisode(double reward, boolean won) {
+		episodes.increment();
+		episodeReward.add(reward);
+		lastEpisodeReward = reward;
+		if (won) {
+			wins.increment();
+		}
+	}
+
+	public void recordTurn() {
+		turns.increment();
+	}
+
+	public void recordMiddleStep(long nanos) {
+		middleStep.record(nanos);
+	}
+
+	public void recordAssignAction(long nanos) {
+		assignAction.record(nanos);
+	}
+
+	/**
+	 * @param bytes
+	 *            Bytes one middleStep allocated, the difference of two
+	 *            threadAllocatedBytes calls
+	 */
+	public void recordAllocation(long bytes) {
+		allocatedBytes.add(bytes);
+		allocationTurns.increment();
+	}
+
+	/**
+	 * @return Bytes the calling thread has allocated so far, or -1 if the JVM
+	 *         does not count them
+	 */
+	public static long threadAllocatedBytes() {
+		return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public void recordWeightUpdate(double tdError) {
+		weightUpdates.increment();
+		absTdError.add(Math.abs(tdError));
+	}
+
+	/**
+	 * Records one decision made within a time budget.
+	 *
+	 * @param refined
+	 *            Footmen whose target came from a full Q-value argmax
+	 * @param fallback
+	 *            Footmen left with their cheap fallback target
+	 */
+	public void recordAssignments(int refined, int fallback) {
+		refinedAssignments.add(refined);
+		fallbackAssignments.add(fallback);
+	}
+
+	/**
+	 * @param suppressed
+	 *            Orders not sent because the footman was already carrying
+	 *            them out
+	 */
+	public void recordSuppressedCommands(int suppressed) {
+		suppressedCommands.add(suppressed);
+	}
+
+	public LatencyHistogram middleStepLatency() {
+		return middleStep;
+	}
+
+	public LatencyHistogram assignActionLatency() {
+		return assignAction;
+	}
+
+	/**
+	 * @return Nanoseconds since these metrics were created
+	 */
+	public long elapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	public double getEpisodeRewardSum() {
+		return episodeReward.sum();
+	}
+
+	public double getAbsTdErrorSum() {
+		return absTdError.sum();
+	}
+
+	public long getAllocationTurns() {
+		return allocationTurns.sum();
+	}
+
+	public long getEpisodes() {
+		return episodes.sum();
+	}
+
+	public long getTurns() {
+		return turns.sum();
+	}
+
+	public long getGamesWon() {
+		return wins.sum();
+	}
+
+	public double getWinRate() {
+		long played = getEpisodes();
+		return played == 0 ? 0 : (double) getGamesWon() / played;
+	}
+
+	public double getEpisodesPerSecond() {
+		return perSecond(getEpisodes());
+	}
+
+	public double getTurnsPerSecond() {
+		return perSecond(getTurns());
+	}
+
+	public double getMeanEpisodeReward() {
+		long played = getEpisodes();
+		return played == 0 ? 0 : episodeReward.sum() / played;
+	}
+
+	public double getLastEpisodeReward() {
+		return lastEpisodeReward;
+	}
+
+	public long getRefinedAssignments() {
+		return refinedAssignments.sum();
+	}
+
+	public long getFallbackAssignments() {
+		return fallbackAssignments.sum();
+	}
+
+	public long getSuppressedCommands() {
+		return suppressedCommands.sum();
+	}
+
+	public long getWeightUpdates() {
+		return weightUpdates.sum();
+	}
+
+	public long getAllocatedBytes() {
+		return THREADS == null ? -1 : allocatedBytes.sum();
+	}
+
+	public double getAllocatedBytesPerTurn() {
+		if (THREADS == null) {
+			return -1;
+		}
+		long sampled = getAllocationTurns();
+		return sampled == 0 ? 0 : (double) allocatedBytes.sum() / sampled;
+	}
+
+	public double getMeanAbsTdError() {
+		long updates = getWeightUpdates();
+		return updates == 0 ? 0 : absTdError.sum() / updates;
+	}
+
+	public long getMiddleStepP50Micros() {
+		return micros(middleStep.snapshot().percentile(0.5));
+	}
+
+	public long getMiddleStepP99Micros() {
+		return micros(middleStep.snapshot().percentile(0.99));
+	}
+
+	public long getMiddleStepMaxMicros() {
+		return micros(middleStep.max());
+	}
+
+	public long getAssignActionP50Micros() {
+		return micros(assignAction.snapshot().percentile(0.5));
+	}
+
+	public long getAssignActionP99Micros() {
+		return micros(assignAction.snapshot().percentile(0.99));
+	}
+
+	public long getAssignActionMaxMicros() {
+		return micros(assignAction.max());
+	}
+
+	private double perSecond(long count) {
+		return count / (elapsedNanos() / 1e9);
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (threads.isThreadAllocatedMemorySupported()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+				return threads;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,51 @@
+package edu.cwru.sepia.agent;
+
+/**
+ * JMX view of a TrainingMetrics. Counts are totals since the metrics were
+ * created, latencies are in microseconds over the same span. Allocation is -1
+ * on JVMs that do not count it.
+ */
+public interface TrainingMetricsMBean {
+
+	long getEpisodes();
+
+	long getTurns();
+
+	long getGamesWon();
+
+	double getWinRate();
+
+	double getEpisodesPerSecond();
+
+	double getTurnsPerSecond();
+
+	double getMeanEpisodeReward();
+
+	double getLastEpisodeReward();
+
+	long getWeightUpdates();
+
+	double getMeanAbsTdError();
+
+	long getAllocatedBytes();
+
+	double getAllocatedBytesPerTurn();
+
+	long getRefinedAssignments();
+
+	long getFallbackAssignments();
+
+	long getSuppressedCommands();
+
+	long getMiddleStepP50Micros();
+
+	long getMiddleStepP99Micros();
+
+	long getMiddleStepMaxMicros();
+
+	long getAssignActionP50Micros();
+
+	long getAssignActionP99Micros();
+
+	long getAssignActionMaxMicros();
+}
@@ -0,0 +1,48 @@
+package edu.cwru.sepia.agent;
+
+import java.util.List;
+
+/**
+ * Outcome of a TrainingRunner job.
+ */
+public class TrainingResult {
+
+	/**
+	 * Weights after the last episode.
+	 */
+	public final double[] weights;
+
+	/**
+	 * Average cumulative reward of each block of 10 episodes, the same values
+	 * RLAgent.printTestData prints.
+	 */
+	public final List<Double> learningCurve;
+
+	public final int episodes;
+	public final int gamesWon;
+	public final long turns;
+	public final long elapsedNanos;
+
+	public TrainingResult(double[] weights, List<Double> learningCurve, int episodes, int gamesWon, long turns,
+			long elapsedNanos) {
+		this.weights = weights;
+		this.learningCurve = learningCurve;
+		this.episodes = episodes;
+		this.gamesWon = gamesWon;
+		this.turns = turns;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public double episodesPerSecond() {
+		return elapsedNanos == 0 ? 0 : episodes * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * @return human readable summary.
+	 */
+	@Override
+	public String toString() {
+		return String.format("%d episodes, %d won, %d turns, %.1f episodes/s", episodes, gamesWon, turns,
+				episodesPerSecond());
+	}
+}
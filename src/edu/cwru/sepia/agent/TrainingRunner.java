@@ -0,0 +1,131 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.cwru.sepia.environment.model.state.StateCreator;
+
+/**
+ * Trains an RLAgent in-process, without SEPIA's config-file runner. The map is
+ * parsed once when the runner is created and every call to train builds a
+ * fresh agent and model on the calling thread, so one JVM (and one JIT
+ * warm-up) can serve any number of training jobs.
+ *
+ * Example:
+ *
+ * TrainingResult result = new TrainingRunner("data/rl_10fv10f.xml").train(1000,
+ * null);
+ */
+public class TrainingRunner {
+
+	/**
+	 * The enemy used by the shipped configs. Lives in enemy_agents, which must
+	 * be on the classpath.
+	 */
+	public static final String DEFAULT_ENEMY_AGENT = "combatAgent";
+
+	private final StateCreator map;
+	private final String enemyAgentClass;
+	private int seed;
+
+	/**
+	 * @param mapFile
+	 *            SEPIA state XML, for example data/rl_5fv5f.xml
+	 * @throws IOException
+	 *             If the map cannot be loaded
+	 */
+	public TrainingRunner(String mapFile) throws IOException {
+		this(EpisodeRunner.loadMap(mapFile), DEFAULT_ENEMY_AGENT, 0);
+	}
+
+	/**
+	 * @param map
+	 *            Creates the starting state of every episode
+	 * @param enemyAgentClass
+	 *            Agent class controlling the enemy player
+	 * @param seed
+	 *            Seed for the model and turn order of the first job. Each job
+	 *            after that uses the next seed.
+	 */
+	public TrainingRunner(StateCreator map, String enemyAgentClass, int seed) {
+		this.map = map;
+		this.enemyAgentClass = enemyAgentClass;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs one training job.
+	 *
+	 * @param episodes
+	 *            Number of episodes to play, learning and evaluation episodes
+	 *            interleaved as in a normal run
+	 * @param initialWeights
+	 *            Starting weights, or null for random weights
+	 * @return Learned weights and learning curve
+	 */
+	public TrainingResult train(int episodes, double[] initialWeights) {
+		RLAgent agent = new RLAgent(0, episodes, initialWeights);
+		agent.setHeadless(true);
+		return train(agent);
+	}
+
+	/**
+	 * Runs an already configured agent until it has played its numEpisodes,
+	 * then waits for its evaluator, if it has one. The agent should be
+	 * headless.
+	 */
+	public TrainingResult train(RLAgent agent) {
+		Agent enemy = EpisodeRunner.createAgent(enemyAgentClass, RLAgent.ENEMY_PLAYERNUM);
+		EpisodeRunner runner = new EpisodeRunner(map, new Agent[] { agent, enemy }, nextSeed());
+
+		long start = System.nanoTime();
+		long turns = 0;
+		while (!agent.isFinished()) {
+			turns += runner.runEpisode();
+		}
+		agent.awaitEvaluations();
+		long elapsed = System.nanoTime() - start;
+
+		return new TrainingResult(agent.weights.clone(), agent.getLearningCurve(), agent.getEpisodesPlayed(),
+				agent.getGamesWon(), turns, elapsed);
+	}
+
+	private synchronized int nextSeed() {
+		return seed++;
+	}
+
+	/**
+	 * Trains from the command line and prints the learning curve.
+	 *
+	 * Usage: TrainingRunner mapFile episodes [jobs] [replayCapacity]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: TrainingRunner mapFile episodes [jobs] [replayCapacity]");
+			return;
+		}
+		TrainingRunner runner = new TrainingRunner(args[0]);
+		int episodes = Integer.parseInt(args[1]);
+		int jobs = args.length >= 3 ? Integer.parseInt(args[2]) : 1;
+		int replayCapacity = args.length >= 4 ? Integer.parseInt(args[3]) : 0;
+
+		TrainingMetrics metrics = new TrainingMetrics();
+		metrics.register(TrainingMetrics.DEFAULT_OBJECT_NAME);
+		MetricsCsvSink sink = new MetricsCsvSink(metrics, new File(RLAgent.METRICS_FILE), RLAgent.METRICS_SECONDS);
+
+		for (int i = 0; i < jobs; i++) {
+			RLAgent agent = new RLAgent(0, episodes, null);
+			agent.setHeadless(true);
+			agent.setMetrics(metrics);
+			if (replayCapacity > 0) {
+				agent.setReplayBuffer(new ReplayBuffer(replayCapacity, RLAgent.NUM_FEATURES),
+						RLAgent.DEFAULT_REPLAY_BATCH);
+			}
+			TrainingResult result = runner.train(agent);
+			System.out.println("Job " + i + ": " + result);
+			RLAgent printer = new RLAgent(0, 0, result.weights);
+			printer.printTestData(result.learningCurve);
+		}
+		sink.close();
+	}
+}
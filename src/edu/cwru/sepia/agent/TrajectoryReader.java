@@ -0,0 +1,262 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the segments a TrajectoryRecorder wrote. Every segment is mapped
+ * read-only and records are read in place through a Cursor, so a pass over
+ * the log copies nothing and allocates nothing per record.
+ *
+ * Records are numbered 0 to records() - 1 in the order they were written,
+ * across segments. Cursors over disjoint ranges can run on different threads
+ * at once.
+ */
+public class TrajectoryReader {
+
+	private final int numFeatures;
+	private final int recordBytes;
+	private final ByteBuffer[] segments;
+	/**
+	 * Number of the first record of each segment, plus the total at the end.
+	 */
+	private final long[] firstRecord;
+
+	/**
+	 * @param directory
+	 *            Directory holding trajectory-NNNNNN.bin segments
+	 * @throws IOException
+	 *             If there are no segments, or one is not a trajectory
+	 *             segment or has a different feature count than the first
+	 */
+	public TrajectoryReader(File directory) throws IOException {
+		List<ByteBuffer> mapped = new ArrayList<ByteBuffer>();
+		int features = -1;
+		for (int segment = 0;; segment++) {
+			File file = TrajectoryRecorder.segmentFile(directory, segment);
+			if (!file.isFile()) {
+				break;
+			}
+			ByteBuffer buffer = map(file);
+			if (buffer.capacity() < TrajectoryRecorder.HEADER_BYTES || buffer.getInt(0) != TrajectoryRecorder.MAGIC) {
+				throw new IOException("Not a trajectory segment: " + file);
+			}
+			if (buffer.getInt(4) != TrajectoryRecorder.VERSION) {
+				throw new IOException("Unsupported trajectory version " + buffer.getInt(4) + ": " + file);
+			}
+			if (features < 0) {
+				features = buffer.getInt(8);
+			} else if (buffer.getInt(8) != features) {
+				throw new IOException("Segment has " + buffer.getInt(8) + " features, expected " + features + ": "
+						+ file);
+			}
+			mapped.add(buffer);
+		}
+		if (mapped.isEmpty()) {
+			throw new IOException("No trajectory segments in " + directory);
+		}
+
+		this.numFeatures = features;
+		this.recordBytes = TrajectoryRecorder.recordBytes(features);
+		this.segments = mapped.toArray(new ByteBuffer[mapped.size()]);
+		this.firstRecord = new long[segments.length + 1];
+		for (int i = 0; i < segments.length; i++) {
+			// a crashed writer may have counted a record it did not finish
+			long whole = (segments[i].capacity() - TrajectoryRecorder.HEADER_BYTES) / recordBytes;
+			firstRecord[i + 1] = firstRecord[i] + Math.min(segments[i].getLong(16), whole);
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			// the mapping outlives the channel
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length())
+					.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			in.close();
+		}
+	}
+
+	public int numFeatures() {
+		return numFeatures;
+	}
+
+	public long records() {
+		return firstRecord[segments.length];
+	}
+
+	/**
+	 * @return A cursor over every record
+	 */
+	public Cursor cursor() {
+		return new Cursor(0, records());
+	}
+
+	/**
+	 * @return A cursor over records from, inclusive, to to, exclusive
+	 */
+	public Cursor cursor(long from, long to) {
+		if (from < 0 || to > records() || from > to) {
+			throw new IndexOutOfBoundsException("Records " + from + " to " + to + " of " + records());
+		}
+		return new Cursor(from, to);
+	}
+
+	/**
+	 * A position in the log. Starts before its first record; next moves to
+	 * the following one. The getters read the current record straight from
+	 * the mapped segment.
+	 */
+	public class Cursor {
+		private final long end;
+		private long record;
+		private int segment;
+		private ByteBuffer buffer;
+		private int offset;
+
+		Cursor(long from, long to) {
+			this.end = to;
+			this.record = from - 1;
+			this.segment = 0;
+			while (segment < segments.length - 1 && firstRecord[segment + 1] <= from) {
+				segment++;
+			}
+			this.buffer = segments[segment];
+			this.offset = TrajectoryRecorder.HEADER_BYTES + (int) (from - firstRecord[segment]) * recordBytes
+					- recordBytes;
+		}
+
+		/**
+		 * @return false once past the last record of the range
+		 */
+		public boolean next() {
+			if (record + 1 >= end) {
+				return false;
+			}
+			record++;
+			offset += recordBytes;
+			while (record >= firstRecord[segment + 1]) {
+				segment++;
+				buffer = segments[segment];
+				offset = TrajectoryRecorder.HEADER_BYTES;
+			}
+			return true;
+		}
+
+		/**
+		 * @return Number of the current record
+		 */
+		public long index() {
+			return record;
+		}
+
+		public int episode() {
+			return buffer.getInt(offset + TrajectoryRecorder.EPISODE);
+		}
+
+		public int turn() {
+			return buffer.getInt(offset + TrajectoryRecorder.TURN);
+		}
+
+		public int attacker() {
+			return buffer.getInt(offset + TrajectoryRecorder.ATTACKER);
+		}
+
+		public int defender() {
+			return buffer.getInt(offset + TrajectoryRecorder.DEFENDER);
+		}
+
+		public int chosen() {
+			return buffer.getInt(offset + TrajectoryRecorder.CHOSEN_DEFENDER);
+		}
+
+		public int flags() {
+			return buffer.getInt(offset + TrajectoryRecorder.FLAGS);
+		}
+
+		public boolean is(int flag) {
+			return (flags() & flag) != 0;
+		}
+
+		public double reward() {
+			return buffer.getDouble(offset + TrajectoryRecorder.REWARD);
+		}
+
+		public double feature(int index) {
+			return buffer.getDouble(offset + TrajectoryRecorder.FEATURES + 8 * index);
+		}
+
+		/**
+		 * @return The dot product of the record's features with the weights
+		 */
+		public double dot(double[] weights) {
+			double sum = 0;
+			int base = offset + TrajectoryRecorder.FEATURES;
+			for (int i = 0; i < numFeatures; i++) {
+				sum += weights[i] * buffer.getDouble(base + 8 * i);
+			}
+			return sum;
+		}
+
+		/**
+		 * Copies the features into out and returns it.
+		 */
+		public double[] features(double[] out) {
+			int base = offset + TrajectoryRecorder.FEATURES;
+			for (int i = 0; i < numFeatures; i++) {
+				out[i] = buffer.getDouble(base + 8 * i);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Usage: TrajectoryReader directory
+	 *
+	 * Prints what the log holds and how fast it reads.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TrajectoryReader directory");
+			return;
+		}
+		TrajectoryReader reader = new TrajectoryReader(new File(args[0]));
+		long start = System.nanoTime();
+		long chosen = 0;
+		long terminal = 0;
+		int episodes = 0;
+		int lastEpisode = -1;
+		// every feature and reward summed, so the pass reads every byte
+		double checksum = 0;
+		double[] ones = new double[reader.numFeatures()];
+		Arrays.fill(ones, 1);
+		Cursor cursor = reader.cursor();
+		while (cursor.next()) {
+			if (cursor.is(TrajectoryRecorder.CHOSEN)) {
+				chosen++;
+			}
+			if (cursor.is(TrajectoryRecorder.TERMINAL)) {
+				terminal++;
+			}
+			if (cursor.episode() != lastEpisode) {
+				lastEpisode = cursor.episode();
+				episodes++;
+			}
+			checksum += cursor.reward() + cursor.dot(ones);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long bytes = reader.records() * TrajectoryRecorder.recordBytes(reader.numFeatures());
+		System.out.println(String.format("%d records in %d segments, %d episodes, %d decisions, %d terminal",
+				reader.records(), reader.segments.length, episodes, chosen, terminal));
+		System.out.println(String.format("read %.1f MB in %.3f s, %.0f MB/s (checksum %.1f)", bytes / 1e6, seconds,
+				bytes / 1e6 / seconds, checksum));
+	}
+}
@@ -0,0 +1,193 @@
+package edu.cwru.sepia.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Streams the agent's decisions into memory-mapped segment files, so new
+ * learning rules can be tried on recorded games without running SEPIA again.
+ * TrajectoryReader reads them back.
+ *
+ * A directory holds segments named trajectory-000000.bin, trajectory-000001.bin
+ * and so on. When a segment is full the next one is started. Each segment is
+ * little-endian, the byte order of the machines we train on, so the reader can
+ * use the mapped bytes as they are:
+ *
+ * int magic 'QLTR', int version, int feature count, int record bytes, long
+ * record count, then fixed-size records of int episode, int turn, int
+ * attacker, int defender, int chosen defender, int flags, double reward,
+ * double[feature count] features.
+ *
+ * The record count in the header is updated with every record, so a segment
+ * cut short by a crash is still readable up to its last whole record.
+ *
+ * A decision record's reward is what calculateReward gave the attacker for
+ * its previous order, as in the learning update, so a transition is a
+ * decision's features, the next decision's reward and features. A TERMINAL
+ * record closes an attacker's last transition when it dies or the episode
+ * ends, with its reward and no features.
+ */
+public class TrajectoryRecorder {
+
+	public static final int MAGIC = 0x514C5452;
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 24;
+	public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+	/**
+	 * The record is for the defender the attacker was ordered to attack.
+	 * Without candidate recording every decision record has it.
+	 */
+	public static final int CHOSEN = 1;
+	/**
+	 * The attacker has no next decision: it died or the episode ended.
+	 */
+	public static final int TERMINAL = 2;
+	/**
+	 * Recorded during an evaluation episode, when the agent was not learning
+	 * or exploring.
+	 */
+	public static final int EXPLOITING = 4;
+
+	/**
+	 * Byte offsets inside a record.
+	 */
+	static final int EPISODE = 0;
+	static final int TURN = 4;
+	static final int ATTACKER = 8;
+	static final int DEFENDER = 12;
+	static final int CHOSEN_DEFENDER = 16;
+	static final int FLAGS = 20;
+	static final int REWARD = 24;
+	static final int FEATURES = 32;
+
+	private final File directory;
+	private final int numFeatures;
+	private final int recordBytes;
+	private final long segmentBytes;
+
+	private int segment = -1;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private long segmentRecords;
+	private long records;
+
+	/**
+	 * @param directory
+	 *            Directory to write the segments into. Segments already there
+	 *            are deleted first, so a reader never mixes an older run's
+	 *            segments into this one's.
+	 * @param numFeatures
+	 *            Length of every feature vector
+	 * @param segmentBytes
+	 *            Size of each segment file
+	 */
+	public TrajectoryRecorder(File directory, int numFeatures, long segmentBytes) throws IOException {
+		this.directory = directory;
+		this.numFeatures = numFeatures;
+		this.recordBytes = recordBytes(numFeatures);
+		this.segmentBytes = segmentBytes;
+		if (segmentBytes < HEADER_BYTES + recordBytes || segmentBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Segments must hold at least one record and stay under 2 GB");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create directory " + directory);
+		}
+		deleteSegments();
+		rotate();
+	}
+
+	public TrajectoryRecorder(File directory, int numFeatures) throws IOException {
+		this(directory, numFeatures, DEFAULT_SEGMENT_BYTES);
+	}
+
+	static int recordBytes(int numFeatures) {
+		return FEATURES + 8 * numFeatures;
+	}
+
+	static File segmentFile(File directory, int segment) {
+		return new File(directory, String.format(Locale.ROOT, "trajectory-%06d.bin", segment));
+	}
+
+	public int numFeatures() {
+		return numFeatures;
+	}
+
+	/**
+	 * @return Records written so far, over all segments
+	 */
+	public long records() {
+		return records;
+	}
+
+	/**
+	 * Appends one record.
+	 *
+	 * @param chosen
+	 *            Defender the attacker was ordered to attack, -1 for TERMINAL
+	 *            records
+	 * @param features
+	 *            At least numFeatures values, or null for zeros
+	 */
+	public void record(int episode, int turn, int attacker, int defender, int chosen, int flags, double reward,
+			double[] features) throws IOException {
+		if (buffer.remaining() < recordBytes) {
+			rotate();
+		}
+		buffer.putInt(episode).putInt(turn).putInt(attacker).putInt(defender).putInt(chosen).putInt(flags)
+				.putDouble(reward);
+		for (int i = 0; i < numFeatures; i++) {
+			buffer.putDouble(features == null ? 0 : features[i]);
+		}
+		segmentRecords++;
+		records++;
+		buffer.putLong(16, segmentRecords);
+	}
+
+	/**
+	 * Finishes the last segment and trims it to the records it holds.
+	 */
+	public void close() throws IOException {
+		finishSegment();
+	}
+
+	private void deleteSegments() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Failed to list directory " + directory);
+		}
+		for (File file : files) {
+			if (file.getName().matches("trajectory-\\d+\\.bin") && !file.delete()) {
+				throw new IOException("Failed to delete old segment " + file);
+			}
+		}
+	}
+
+	private void rotate() throws IOException {
+		finishSegment();
+		segment++;
+		file = new RandomAccessFile(segmentFile(directory, segment), "rw");
+		file.setLength(0);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(numFeatures).putInt(recordBytes).putLong(0);
+		segmentRecords = 0;
+	}
+
+	private void finishSegment() throws IOException {
+		if (file == null) {
+			return;
+		}
+		buffer.force();
+		// the mapping stays valid until collected, but nothing touches it
+		// past the records
+		file.setLength(HEADER_BYTES + segmentRecords * recordBytes);
+		file.close();
+		file = null;
+	}
+}
@@ -0,0 +1,176 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+import edu.cwru.sepia.action.ActionFeedback;
+import edu.cwru.sepia.action.ActionResult;
+import edu.cwru.sepia.environment.model.history.DamageLog;
+import edu.cwru.sepia.environment.model.history.DeathLog;
+import edu.cwru.sepia.environment.model.history.History;
+import edu.cwru.sepia.environment.model.state.State;
+
+/**
+ * Summary of what happened on the previous turn, built with one pass over the
+ * damage logs, death logs and command feedback. Reward, event detection and
+ * idle footman detection all read from here instead of each rescanning the
+ * history.
+ *
+ * One digest is reused turn after turn. Per-unit totals are cleared through
+ * the list of units touched on the last build, so rebuilding costs time
+ * proportional to the number of log entries, not the number of units.
+ */
+public class TurnDigest {
+
+	private State.StateView builtFor;
+	private History.HistoryView builtFrom;
+	private int turn = -1;
+
+	private int[] damageTakenByPlayer = new int[2];
+	private int[] damageDealt = new int[32];
+	private int[] damageTaken = new int[32];
+	private final UnitSet damagedOrDamaging = new UnitSet();
+
+	private int deaths;
+	private int[] deadUnits = new int[8];
+	private int[] deadControllers = new int[8];
+
+	private final UnitSet completed = new UnitSet();
+	private final UnitSet failed = new UnitSet();
+
+	/**
+	 * Summarises the turn before the current one, unless this digest already
+	 * holds that summary for the same views.
+	 *
+	 * @param stateView
+	 *            Current state of the game
+	 * @param historyView
+	 *            History of the game up until this turn
+	 * @param playernum
+	 *            Player whose command feedback to read
+	 */
+	public void update(State.StateView stateView, History.HistoryView historyView, int playernum) {
+		if (stateView == builtFor && historyView == builtFrom && stateView.getTurnNumber() == turn) {
+			return;
+		}
+		clear();
+		builtFor = stateView;
+		builtFrom = historyView;
+		turn = stateView.getTurnNumber();
+		if (turn <= 0) {
+			return;
+		}
+
+		for (DamageLog damage : historyView.getDamageLogs(turn - 1)) {
+			int defenderController = damage.getDefenderController();
+			if (defenderController >= damageTakenByPlayer.length) {
+				damageTakenByPlayer = Arrays.copyOf(damageTakenByPlayer, defenderController + 1);
+			}
+			damageTakenByPlayer[defenderController] += damage.getDamage();
+
+			int attacker = damage.getAttackerID();
+			int defender = damage.getDefenderID();
+			ensureUnitCapacity(Math.max(attacker, defender));
+			damageDealt[attacker] += damage.getDamage();
+			damageTaken[defender] += damage.getDamage();
+			damagedOrDamaging.add(attacker);
+			damagedOrDamaging.add(defender);
+		}
+
+		for (DeathLog death : historyView.getDeathLogs(turn - 1)) {
+			if (deaths == deadUnits.length) {
+				deadUnits = Arrays.copyOf(deadUnits, deaths * 2);
+				deadControllers = Arrays.copyOf(deadControllers, deaths * 2);
+			}
+			deadUnits[deaths] = death.getDeadUnitID();
+			deadControllers[deaths] = death.getController();
+			deaths++;
+		}
+
+		for (ActionResult result : historyView.getCommandFeedback(playernum, turn - 1).values()) {
+			if (result.getFeedback() == ActionFeedback.COMPLETED) {
+				completed.add(result.getAction().getUnitId());
+			} else if (result.getFeedback() == ActionFeedback.FAILED) {
+				failed.add(result.getAction().getUnitId());
+			}
+		}
+	}
+
+	/**
+	 * @return Turn number the digest was built on. It describes the turn
+	 *         before this one.
+	 */
+	public int getTurn() {
+		return turn;
+	}
+
+	/**
+	 * @return Total damage the player's units took last turn
+	 */
+	public int damageTakenByPlayer(int player) {
+		return player < damageTakenByPlayer.length ? damageTakenByPlayer[player] : 0;
+	}
+
+	public int damageDealtBy(int unitId) {
+		return unitId < damageDealt.length ? damageDealt[unitId] : 0;
+	}
+
+	public int damageTakenBy(int unitId) {
+		return unitId < damageTaken.length ? damageTaken[unitId] : 0;
+	}
+
+	public int deathCount() {
+		return deaths;
+	}
+
+	/**
+	 * @param index
+	 *            0 <= index < deathCount()
+	 */
+	public int deadUnit(int index) {
+		return deadUnits[index];
+	}
+
+	/**
+	 * @param index
+	 *            0 <= index < deathCount()
+	 * @return Player that controlled the dead unit
+	 */
+	public int deadController(int index) {
+		return deadControllers[index];
+	}
+
+	/**
+	 * @return Units whose command completed last turn
+	 */
+	public UnitSet completed() {
+		return completed;
+	}
+
+	/**
+	 * @return Units whose command failed last turn
+	 */
+	public UnitSet failed() {
+		return failed;
+	}
+
+	private void clear() {
+		Arrays.fill(damageTakenByPlayer, 0);
+		for (int i = 0; i < damagedOrDamaging.size(); i++) {
+			int unitId = damagedOrDamaging.get(i);
+			damageDealt[unitId] = 0;
+			damageTaken[unitId] = 0;
+		}
+		damagedOrDamaging.clear();
+		deaths = 0;
+		completed.clear();
+		failed.clear();
+	}
+
+	private void ensureUnitCapacity(int unitId) {
+		if (unitId >= damageDealt.length) {
+			int capacity = Math.max(unitId + 1, damageDealt.length * 2);
+			damageDealt = Arrays.copyOf(damageDealt, capacity);
+			damageTaken = Arrays.copyOf(damageTaken, capacity);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Compact set of unit IDs. Members are stored densely in an int array so they
+ * can be iterated with a plain index loop, and a reverse index keyed by unit
+ * ID gives O(1) contains and remove without boxing.
+ *
+ * Removal swaps the last member into the freed slot, so iteration order is not
+ * insertion order once units start dying.
+ */
+public class UnitSet {
+
+	private int[] members;
+	private int[] slotOf;
+	private int size;
+
+	public UnitSet() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity
+	 *            Initial number of members and unit IDs to size the arrays for
+	 */
+	public UnitSet(int capacity) {
+		this.members = new int[Math.max(1, capacity)];
+		this.slotOf = new int[Math.max(1, capacity)];
+		Arrays.fill(this.slotOf, -1);
+	}
+
+	/**
+	 * Adds a unit to the set. Adding a unit that is already present does
+	 * nothing.
+	 *
+	 * @param unitId
+	 *            Unit to add
+	 */
+	public void add(int unitId) {
+		if (contains(unitId)) {
+			return;
+		}
+		if (unitId >= slotOf.length) {
+			int oldLength = slotOf.length;
+			slotOf = Arrays.copyOf(slotOf, Math.max(unitId + 1, oldLength * 2));
+			Arrays.fill(slotOf, oldLength, slotOf.length, -1);
+		}
+		if (size == members.length) {
+			members = Arrays.copyOf(members, size * 2);
+		}
+		members[size] = unitId;
+		slotOf[unitId] = size;
+		size++;
+	}
+
+	/**
+	 * Removes a unit from the set.
+	 *
+	 * @param unitId
+	 *            Unit to remove
+	 * @return true if the unit was a member
+	 */
+	public boolean remove(int unitId) {
+		if (!contains(unitId)) {
+			return false;
+		}
+		int slot = slotOf[unitId];
+		int last = members[--size];
+		members[slot] = last;
+		slotOf[last] = slot;
+		slotOf[unitId] = -1;
+		return true;
+	}
+
+	public boolean contains(int unitId) {
+		return unitId >= 0 && unitId < slotOf.length && slotOf[unitId] >= 0;
+	}
+
+	/**
+	 * @param index
+	 *            Position in the dense member array, 0 <= index < size()
+	 * @return The unit ID stored at that position
+	 */
+	public int get(int index) {
+		return members[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Empties the set without releasing its arrays.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			slotOf[members[i]] = -1;
+		}
+		size = 0;
+	}
+}
@@ -0,0 +1,96 @@
+package edu.cwru.sepia.agent;
+
+import java.util.Arrays;
+
+/**
+ * Dense per-unit state indexed directly by SEPIA unit ID. HP and location are
+ * kept in parallel primitive arrays so refreshing the table every turn does
+ * not box or allocate, and feature code can read them without map lookups.
+ *
+ * SEPIA hands out small consecutive unit IDs, so the arrays stay about as
+ * large as the number of units on the map. They grow on demand if a larger ID
+ * shows up.
+ */
+public class UnitTable {
+
+	private int[] hp;
+	private int[] x;
+	private int[] y;
+
+	public UnitTable() {
+		this(32);
+	}
+
+	/**
+	 * @param capacity
+	 *            Initial number of unit IDs to size the arrays for
+	 */
+	public UnitTable(int capacity) {
+		this.hp = new int[Math.max(1, capacity)];
+		this.x = new int[Math.max(1, capacity)];
+		this.y = new int[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Records the current HP and location of a unit.
+	 *
+	 * @param unitId
+	 *            Unit to update
+	 * @param hp
+	 *            Current hit points
+	 * @param x
+	 *            Current x position
+	 * @param y
+	 *            Current y position
+	 */
+	public void update(int unitId, int hp, int x, int y) {
+		if (unitId >= this.hp.length) {
+			grow(unitId + 1);
+		}
+		this.hp[unitId] = hp;
+		this.x[unitId] = x;
+		this.y[unitId] = y;
+	}
+
+	public int hp(int unitId) {
+		return hp[unitId];
+	}
+
+	public int x(int unitId) {
+		return x[unitId];
+	}
+
+	public int y(int unitId) {
+		return y[unitId];
+	}
+
+	/**
+	 * Same test as {@link Position#isAdjacent(Position)} without building the
+	 * two positions.
+	 */
+	public boolean isAdjacent(int unitA, int unitB) {
+		return Math.abs(x[unitA] - x[unitB]) <= 1 && Math.abs(y[unitA] - y[unitB]) <= 1;
+	}
+
+	/**
+	 * @return A new Position for the unit's last recorded location
+	 */
+	public Position position(int unitId) {
+		return new Position(x[unitId], y[unitId]);
+	}
+
+	/**
+	 * @return One more than the largest unit ID the table can hold without
+	 *         growing
+	 */
+	public int capacity() {
+		return hp.length;
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(minCapacity, hp.length * 2);
+		hp = Arrays.copyOf(hp, capacity);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+	}
+}
@@ -0,0 +1,230 @@
+package edu.cwru.sepia.agent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * Saves weight checkpoints in a small binary format on a background thread.
+ *
+ * The game thread only copies the weights and hands them over. If a write is
+ * still in progress when the next checkpoint comes in, the pending checkpoint
+ * is replaced rather than queued, so a slow disk never builds a backlog.
+ * Each file is written to a temporary file next to the target and renamed
+ * over it, so a crash mid-write leaves the previous checkpoint intact.
+ *
+ * File layout, big-endian:
+ *
+ * int magic 'QLWT', int version, int weight count, long episode, long
+ * timestamp millis, double[count] weights, long CRC32 of everything before it
+ */
+public class WeightCheckpointer {
+
+	public static final int MAGIC = 0x514C5754;
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 8;
+
+	private final File path;
+	private final int everyEpisodes;
+	private final long everyNanos;
+	private final ExecutorService writer;
+	private final AtomicReference<Checkpoint> pending = new AtomicReference<Checkpoint>();
+
+	private int lastEpisode = 0;
+	private long lastNanos = System.nanoTime();
+
+	/**
+	 * @param path
+	 *            Checkpoint file to write
+	 * @param everyEpisodes
+	 *            Checkpoint when at least this many episodes passed since the
+	 *            last one. 0 disables the episode trigger.
+	 * @param everySeconds
+	 *            Checkpoint when at least this many seconds passed since the
+	 *            last one. 0 disables the time trigger.
+	 */
+	public WeightCheckpointer(File path, int everyEpisodes, long everySeconds) {
+		this.path = path;
+		this.everyEpisodes = everyEpisodes;
+		this.everyNanos = TimeUnit.SECONDS.toNanos(everySeconds);
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "weight-checkpointer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Called at the end of every episode. Schedules a checkpoint if the
+	 * episode or time interval has elapsed.
+	 *
+	 * @param episode
+	 *            Number of episodes played so far
+	 * @param weights
+	 *            Current weights. Copied before returning.
+	 * @return true if a checkpoint was scheduled
+	 */
+	public boolean onEpisodeEnd(int episode, double[] weights) {
+		long now = System.nanoTime();
+		boolean episodesDue = everyEpisodes > 0 && episode - lastEpisode >= everyEpisodes;
+		boolean timeDue = everyNanos > 0 && now - lastNanos >= everyNanos;
+		if (!episodesDue && !timeDue) {
+			return false;
+		}
+		lastEpisode = episode;
+		lastNanos = now;
+		checkpoint(episode, weights);
+		return true;
+	}
+
+	/**
+	 * Schedules a checkpoint now regardless of the intervals.
+	 */
+	public void checkpoint(int episode, double[] weights) {
+		if (pending.getAndSet(new Checkpoint(episode, weights.clone())) == null) {
+			writer.execute(new Runnable() {
+				public void run() {
+					Checkpoint checkpoint = pending.getAndSet(null);
+					if (checkpoint != null) {
+						try {
+							write(path, checkpoint.episode, checkpoint.weights);
+						} catch (IOException ex) {
+							System.err.println("Failed to write checkpoint. Reason: " + ex.getMessage());
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits for any scheduled checkpoint to reach the disk and stops the
+	 * background thread.
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint file atomically on the calling thread.
+	 */
+	public static void write(File path, int episode, double[] weights) throws IOException {
+		File parent = path.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 8 * weights.length);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(weights.length).putLong(episode)
+				.putLong(System.currentTimeMillis());
+		for (double weight : weights) {
+			buffer.putDouble(weight);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+
+		File temp = File.createTempFile(path.getName(), ".tmp", parent);
+		try {
+			FileOutputStream file = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			try {
+				out.write(buffer.array(), 0, buffer.position());
+				out.writeLong(crc.getValue());
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(temp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * @return true if the file starts with the checkpoint magic number
+	 */
+	public static boolean isCheckpoint(File path) {
+		if (path.length() < 4) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(Files.newInputStream(path.toPath()));
+			try {
+				return in.readInt() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the weights from a checkpoint file.
+	 *
+	 * @throws IOException
+	 *             If the file is not a checkpoint, has an unknown version or
+	 *             fails its checksum
+	 */
+	public static double[] read(File path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path.toPath()));
+		if (buffer.remaining() < HEADER_BYTES + 8 || buffer.getInt() != MAGIC) {
+			throw new IOException("Not a weight checkpoint: " + path);
+		}
+		int version = buffer.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported checkpoint version " + version + ": " + path);
+		}
+		int count = buffer.getInt();
+		if (count < 0 || buffer.capacity() != HEADER_BYTES + 8 * count + 8) {
+			throw new IOException("Truncated checkpoint: " + path);
+		}
+		buffer.getLong(); // episode
+		buffer.getLong(); // timestamp
+		double[] weights = new double[count];
+		for (int i = 0; i < count; i++) {
+			weights[i] = buffer.getDouble();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		if (buffer.getLong() != crc.getValue()) {
+			throw new IOException("Checkpoint checksum mismatch: " + path);
+		}
+		return weights;
+	}
+
+	private static class Checkpoint {
+		final int episode;
+		final double[] weights;
+
+		Checkpoint(int episode, double[] weights) {
+			this.episode = episode;
+			this.weights = weights;
+		}
+	}
+}